@@ -0,0 +1,404 @@
+package org.twaindirect.benchmark;
+
+import org.json.JSONObject;
+import org.twaindirect.SessionRunner;
+import org.twaindirect.TwainDirect;
+import org.twaindirect.session.AsyncTransport;
+import org.twaindirect.session.BlockDownloaderConfig;
+import org.twaindirect.session.BufferPool;
+import org.twaindirect.session.HistogramSessionMetrics;
+import org.twaindirect.session.InMemoryImageListener;
+import org.twaindirect.session.LoopbackTransport;
+import org.twaindirect.session.ScannerTransport;
+import org.twaindirect.session.Session;
+import org.twaindirect.session.SessionListener;
+import org.twaindirect.simulator.ScannerSimulator;
+import org.twaindirect.simulator.SimulatorConfig;
+import org.twaindirect.simulator.SimulatorHandler;
+import org.twaindirect.simulator.SimulatorServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End to end scanning throughput.
+ *
+ * Runs complete sessions (open, sendTask, startCapturing, drain, close) with SessionRunner,
+ * the same way the TwainDirect command line tool does, against a ScannerSimulator on the
+ * loopback interface. For each combination of settings it reports:
+ *
+ *  - pages per minute and MB/s, from opening the session until onDoneCapturing
+ *  - time to first image, from opening the session
+ *  - p50 and p99 image latency, from the simulator scanning a page to onImageReceived
+ *  - peak heap use
+ *
+ * Options taking a list sweep every combination, for example:
+ *
+ *      ThroughputHarness --pages 200 --image-size 262144,1048576 --window 1,2,4,8,auto
+ *
+ * Options:
+ *      --pages n               Pages per session (default 100)
+ *      --image-size n,...      Image size in bytes (default 262144)
+ *      --block-size n,...      Largest image block in bytes, 0 for one block per image (default 0)
+ *      --window n|auto,...     Simultaneous block downloads, or auto for the adaptive window (default auto)
+ *      --latency ms            Delay the simulator adds to every request (default 0)
+ *      --jitter ms             Random extra delay, up to this much (default 0)
+ *      --page-interval ms      Time the simulator takes to scan each page (default 0)
+ *      --transport name        blocking, async or loopback, the ScannerTransport sessions use. loopback
+ *                              calls the simulator in process, leaving out the network (default blocking)
+ *      --in-memory n           Deliver images up to n bytes in memory rather than as files (default 0, off)
+ *      --out-of-order          Deliver each image as soon as its parts are complete, not in scan order
+ *      --runs n                Measured sessions per combination (default 3)
+ *      --warmup n              Unmeasured sessions per combination (default 1)
+ *      --csv                   Print results as CSV
+ *      --metrics               Print the session's HistogramSessionMetrics after each run
+ *      --verbose               Keep the library's logging
+ */
+public class ThroughputHarness {
+    // Longest we'll wait for a session to finish
+    private static final long sessionTimeout = 10 * 60 * 1000;
+
+    private final Map<String, String> options;
+
+    // Results of one measured session
+    static class RunResult {
+        int pages;
+        long bytes;
+        long elapsed;
+        long timeToFirstImage;
+        long p50Latency;
+        long p99Latency;
+        long peakHeap;
+        int errors;
+        HistogramSessionMetrics metrics;
+    }
+
+    ThroughputHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int idx = 0; idx < args.length; idx++) {
+            if (!args[idx].startsWith("--")) {
+                usage("Unexpected argument " + args[idx]);
+            }
+
+            String name = args[idx].substring(2);
+            if (name.equals("csv") || name.equals("verbose") || name.equals("metrics") || name.equals("out-of-order")) {
+                options.put(name, "true");
+            } else if (idx + 1 < args.length) {
+                options.put(name, args[++idx]);
+            } else {
+                usage("Missing value for " + args[idx]);
+            }
+        }
+
+        try {
+            new ThroughputHarness(options).run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        // Session leaves non-daemon threads behind
+        System.exit(0);
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: ThroughputHarness [--pages n] [--image-size n,...] [--block-size n,...] [--window n|auto,...]");
+        System.err.println("       [--latency ms] [--jitter ms] [--page-interval ms] [--transport blocking|async|loopback]");
+        System.err.println("       [--in-memory n] [--out-of-order] [--runs n] [--warmup n] [--csv] [--metrics] [--verbose]");
+        System.exit(1);
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+
+    private List<String> listOption(String name, String defaultValue) {
+        return Arrays.asList(option(name, defaultValue).split(","));
+    }
+
+    void run() throws Exception {
+        if (!options.containsKey("verbose")) {
+            Logger.getLogger("").setLevel(Level.WARNING);
+        }
+
+        boolean csv = options.containsKey("csv");
+        int runs = intOption("runs", 3);
+        int warmup = intOption("warmup", 1);
+
+        if (csv) {
+            System.out.println("imageSize,blockSize,window,run,pages,pagesPerMinute,mbPerSecond,timeToFirstImageMs,p50LatencyMs,p99LatencyMs,peakHeapMb,errors");
+        } else {
+            System.out.println(String.format(Locale.US, "%10s %10s %6s %10s %8s %12s %10s %10s %10s %6s",
+                    "imageSize", "blockSize", "window", "pages/min", "MB/s", "firstImage", "p50", "p99", "peakHeap", "errors"));
+        }
+
+        for (String imageSize : listOption("image-size", "262144")) {
+            for (String blockSize : listOption("block-size", "0")) {
+                for (String window : listOption("window", "auto")) {
+                    SimulatorConfig simulatorConfig = simulatorConfig(Integer.parseInt(imageSize), Integer.parseInt(blockSize));
+                    BlockDownloaderConfig downloaderConfig = downloaderConfig(window);
+                    downloaderConfig.inMemoryImageLimit = intOption("in-memory", 0);
+                    downloaderConfig.outOfOrderDelivery = options.containsKey("out-of-order");
+
+                    for (int idx = 0; idx < warmup; idx++) {
+                        runSession(simulatorConfig, downloaderConfig);
+                    }
+
+                    for (int idx = 1; idx <= runs; idx++) {
+                        RunResult result = runSession(simulatorConfig, downloaderConfig);
+                        print(csv, imageSize, blockSize, window, idx, result);
+                        if (result.metrics != null) {
+                            System.out.println(result.metrics);
+                            System.out.println(BufferPool.getSharedPool());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private SimulatorConfig simulatorConfig(int imageSize, int blockSize) {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = intOption("pages", 100);
+        config.imageSize = imageSize;
+        config.blockSize = blockSize > 0 ? blockSize : imageSize;
+        config.latency = intOption("latency", 0);
+        config.jitter = intOption("jitter", 0);
+        config.pageInterval = intOption("page-interval", 0);
+        return config;
+    }
+
+    private static BlockDownloaderConfig downloaderConfig(String window) {
+        BlockDownloaderConfig config = new BlockDownloaderConfig();
+        if (window.equals("auto")) {
+            config.adaptiveWindow = true;
+        } else {
+            config.adaptiveWindow = false;
+            config.windowSize = Integer.parseInt(window);
+            config.maxWindowSize = Math.max(config.maxWindowSize, config.windowSize);
+            config.poolSize = Math.max(config.poolSize, config.windowSize);
+        }
+        return config;
+    }
+
+    /**
+     * Scan one session's worth of pages and measure it.
+     */
+    RunResult runSession(SimulatorConfig simulatorConfig, BlockDownloaderConfig downloaderConfig) throws Exception {
+        final ScannerSimulator simulator = new ScannerSimulator(simulatorConfig);
+        String transport = option("transport", "blocking");
+        if (!transport.equals("blocking") && !transport.equals("async") && !transport.equals("loopback")) {
+            usage("Unknown transport " + transport);
+        }
+
+        // The loopback transport calls the simulator directly, so it doesn't need a server
+        SimulatorServer server = null;
+        if (!transport.equals("loopback")) {
+            server = new SimulatorServer(simulator);
+            server.start();
+        }
+
+        File tempDir = createTempDir();
+        // A transport we set on the session is ours to close
+        ScannerTransport sessionTransport = null;
+        try {
+            Session session;
+            if (server != null) {
+                session = new Session(server.getUrl(), server.getIpAddress());
+                if (transport.equals("async")) {
+                    sessionTransport = new AsyncTransport();
+                    session.setTransport(sessionTransport);
+                }
+            } else {
+                session = new Session(SimulatorHandler.url, null);
+                sessionTransport = new LoopbackTransport(new SimulatorHandler(simulator));
+                session.setTransport(sessionTransport);
+            }
+            session.setTempDir(tempDir);
+            session.setBlockDownloaderConfig(downloaderConfig);
+
+            HistogramSessionMetrics metrics = null;
+            if (options.containsKey("metrics")) {
+                metrics = new HistogramSessionMetrics();
+                session.setMetrics(metrics);
+            }
+
+            final List<Long> latencies = new ArrayList<>();
+            final AtomicLong bytes = new AtomicLong();
+            final AtomicLong firstImageTime = new AtomicLong();
+            final int[] errors = new int[1];
+
+            // Takes images as files or, with --in-memory, in memory
+            class Listener implements SessionListener, InMemoryImageListener {
+                @Override
+                public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+                    imageReceived(pdfPath.length(), metadata);
+                }
+
+                @Override
+                public void onImageReceived(Session session, ByteBuffer image, JSONObject metadata) {
+                    imageReceived(image.remaining(), metadata);
+                }
+
+                private void imageReceived(long size, JSONObject metadata) {
+                    long now = System.nanoTime();
+                    firstImageTime.compareAndSet(0, now);
+                    bytes.addAndGet(size);
+
+                    int imageNumber = metadata.getJSONObject("address").getInt("imageNumber");
+                    synchronized(latencies) {
+                        latencies.add(now - simulator.getPageProducedTime(imageNumber));
+                    }
+                }
+
+                @Override
+                public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
+                }
+
+                @Override
+                public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
+                }
+
+                @Override
+                public void onDoneCapturing(Session session) {
+                }
+
+                @Override
+                public void onConnectionError(Session session, Exception reason) {
+                    synchronized(latencies) {
+                        errors[0]++;
+                    }
+                }
+            }
+            SessionListener listener = new Listener();
+
+            System.gc();
+            resetPeakHeap();
+
+            long start = System.nanoTime();
+            new SessionRunner(session, TwainDirect.defaultTask(), listener).run(sessionTimeout);
+            long elapsed = System.nanoTime() - start;
+
+            RunResult result = new RunResult();
+            result.elapsed = elapsed;
+            result.bytes = bytes.get();
+            result.timeToFirstImage = firstImageTime.get() == 0 ? 0 : firstImageTime.get() - start;
+            result.peakHeap = peakHeap();
+            result.metrics = metrics;
+
+            synchronized(latencies) {
+                result.pages = latencies.size();
+                result.errors = errors[0];
+                long[] sorted = new long[latencies.size()];
+                for (int idx = 0; idx < sorted.length; idx++) {
+                    sorted[idx] = latencies.get(idx);
+                }
+                Arrays.sort(sorted);
+                result.p50Latency = percentile(sorted, 0.50);
+                result.p99Latency = percentile(sorted, 0.99);
+            }
+
+            return result;
+        } finally {
+            if (sessionTransport != null) {
+                sessionTransport.close();
+            }
+            if (server != null) {
+                server.stop();
+            } else {
+                simulator.shutdown();
+            }
+            deleteTempDir(tempDir);
+        }
+    }
+
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int)Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // Sum of the peaks of the heap pools. The pools peak at different times, so this is
+    // an upper bound.
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static File createTempDir() throws IOException {
+        File tempDir = File.createTempFile("throughput", "");
+        if (!tempDir.delete() || !tempDir.mkdirs()) {
+            throw new IOException("Unable to create " + tempDir);
+        }
+        return tempDir;
+    }
+
+    private static void deleteTempDir(File tempDir) {
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    private static void print(boolean csv, String imageSize, String blockSize, String window, int run, RunResult result) {
+        double minutes = result.elapsed / 60e9;
+        double seconds = result.elapsed / 1e9;
+        double pagesPerMinute = result.pages / minutes;
+        double mbPerSecond = result.bytes / (1024.0 * 1024.0) / seconds;
+        double firstImage = result.timeToFirstImage / 1e6;
+        double p50 = result.p50Latency / 1e6;
+        double p99 = result.p99Latency / 1e6;
+        double peakHeap = result.peakHeap / (1024.0 * 1024.0);
+
+        if (csv) {
+            System.out.println(String.format(Locale.US, "%s,%s,%s,%d,%d,%.1f,%.2f,%.1f,%.1f,%.1f,%.1f,%d",
+                    imageSize, blockSize, window, run, result.pages, pagesPerMinute, mbPerSecond,
+                    firstImage, p50, p99, peakHeap, result.errors));
+        } else {
+            System.out.println(String.format(Locale.US, "%10s %10s %6s %10.1f %8.2f %10.1fms %8.1fms %8.1fms %8.1fMB %6d",
+                    imageSize, blockSize, window, pagesPerMinute, mbPerSecond,
+                    firstImage, p50, p99, peakHeap, result.errors));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.twaindirect.cloud;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding an MQTT message and routing it to the listener for its command, which is
+ * what CloudEventBroker does for every message that arrives.
+ *
+ * The other listeners stand in for the commands that are outstanding at the same time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CloudEventBrokerBenchmark {
+    // Number of other commands waiting for a response
+    @Param({"0", "32"})
+    public int outstandingCommands;
+
+    private CloudEventBroker broker;
+    private byte[] message;
+    private CloudEventBrokerListener listener;
+
+    static class Listener implements CloudEventBrokerJSONListener {
+        private final String commandId;
+
+        Listener(String commandId) {
+            this.commandId = commandId;
+        }
+
+        @Override
+        public String getCommandId() {
+            return commandId;
+        }
+
+        @Override
+        public void deliverJSONResponse(JSONObject body) {
+        }
+
+        @Override
+        public void deliverJSONResponse(String body) {
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        CloudEventBrokerInfo info = new CloudEventBrokerInfo();
+        info.url = "tcp://localhost:1883";
+        broker = new CloudEventBroker("token", info);
+
+        for (int idx = 0; idx < outstandingCommands; idx++) {
+            broker.addListener(new Listener("outstanding-" + idx));
+        }
+
+        String commandId = "0b1c2d3e-4f5a-6b7c-8d9e-0f1a2b3c4d5e";
+        listener = new Listener(commandId);
+
+        JSONObject body = new JSONObject();
+        body.put("kind", "twainlocalscanner");
+        body.put("commandId", commandId);
+        body.put("method", "readImageBlock");
+        body.put("results", new JSONObject("{\"success\":true,\"imageBlockUrl\":\"https://cloud.example.com/blocks/1\","
+                + "\"metadata\":{\"address\":{\"sheetNumber\":1,\"imageNumber\":1,\"imagePart\":1,\"moreParts\":\"lastPartInFile\"}}}"));
+
+        JSONObject payload = new JSONObject();
+        payload.put("headers", new JSONObject("{\"content-Type\":\"application/json; charset=UTF-8\"}"));
+        payload.put("statusCode", 200);
+        payload.put("body", body.toString());
+        message = payload.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public void routeResponse() throws IOException {
+        broker.addListener(listener);
+        broker.decodeMessage(message);
+    }
+}
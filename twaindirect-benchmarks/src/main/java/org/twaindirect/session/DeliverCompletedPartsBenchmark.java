@@ -0,0 +1,150 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembling downloaded parts into an image and handing it to the SessionListener,
+ * in BlockDownloader.deliverCompletedParts.
+ *
+ * Before each invocation the parts of one image are written to disk, as if they had
+ * just been downloaded: either each to its own part file, to be copied into place, or
+ * straight into the image's file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeliverCompletedPartsBenchmark {
+    // Number of blocks the image is split into
+    @Param({"1", "4"})
+    public int parts;
+
+    // Size of each block
+    @Param({"262144"})
+    public int partSize;
+
+    // Were the parts after the first written straight into the image's file?
+    @Param({"false", "true"})
+    public boolean inPlace;
+
+    private File tempDir;
+    private Session session;
+    private BlockDownloader blockDownloader;
+    private byte[] partData;
+    private int nextBlockNum = 1;
+    private int imageNumber;
+
+    // Counts the delivered images, so delivery can't be optimized away
+    private int imagesDelivered;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        tempDir = File.createTempFile("deliver", "");
+        tempDir.delete();
+        tempDir.mkdirs();
+
+        session = new Session(URI.create("http://scanner.local:34034/"), "127.0.0.1");
+
+        SessionListener listener = new SessionListener() {
+            @Override
+            public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+                imagesDelivered++;
+            }
+
+            @Override
+            public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
+            }
+
+            @Override
+            public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
+            }
+
+            @Override
+            public void onDoneCapturing(Session session) {
+            }
+
+            @Override
+            public void onConnectionError(Session session, Exception reason) {
+            }
+        };
+
+        blockDownloader = new BlockDownloader(session, tempDir, listener, null, new BlockDownloaderConfig());
+
+        partData = new byte[partSize];
+        for (int idx = 0; idx < partData.length; idx++) {
+            partData[idx] = (byte)(idx * 31);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        blockDownloader.shutdown();
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void writeParts() throws IOException {
+        imageNumber++;
+        for (int part = 1; part <= parts; part++) {
+            ImageBlockInfo info = new ImageBlockInfo();
+            info.blockNum = nextBlockNum++;
+            info.sheetNumber = imageNumber;
+            info.imageNumber = imageNumber;
+            info.imagePart = part;
+            info.moreParts = part < parts ? ImageBlockInfo.MoreParts.morePartsPending : ImageBlockInfo.MoreParts.lastPartInFile;
+            info.size = partData.length;
+            info.metadata = new JSONObject();
+
+            OutputStream out;
+            if (inPlace) {
+                info.inPlace = true;
+                out = new PositionalOutputStream(new File(tempDir, info.imageFileName()), (long)(part - 1) * partData.length);
+            } else {
+                out = new FileOutputStream(new File(tempDir, info.partFileName()));
+            }
+            try {
+                out.write(partData);
+            } finally {
+                out.close();
+            }
+
+            synchronized(blockDownloader) {
+                blockDownloader.downloadedBlocks.put(info.blockNum, info);
+            }
+        }
+    }
+
+    @Benchmark
+    public int deliverCompletedParts() {
+        blockDownloader.deliverCompletedParts();
+        return imagesDelivered;
+    }
+}
@@ -0,0 +1,52 @@
+package org.twaindirect.session;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of creating an HttpClient, compared with getting one from HttpClientPool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HttpClientBenchmark {
+    private HttpClientPool pool;
+
+    @Setup
+    public void setUp() {
+        pool = new HttpClientPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public CloseableHttpClient createHttpClient() throws IOException {
+        CloseableHttpClient httpClient = HttpClientBuilder.createHttpClient("scanner.local", "127.0.0.1");
+        httpClient.close();
+        return httpClient;
+    }
+
+    @Benchmark
+    public CloseableHttpClient pooledHttpClient() throws IOException {
+        return pool.getHttpClient("scanner.local", "127.0.0.1");
+    }
+}
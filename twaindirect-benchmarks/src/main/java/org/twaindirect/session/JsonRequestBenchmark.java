@@ -0,0 +1,56 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a command, from Session.createJsonRequest to the bytes sent on the wire,
+ * and generating command IDs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonRequestBenchmark {
+    private Session session;
+    private int blockNum;
+
+    @Setup
+    public void setUp() {
+        session = new Session(URI.create("http://scanner.local:34034/"), "127.0.0.1");
+    }
+
+    @Benchmark
+    public HttpJsonRequest createJsonRequest() {
+        JSONObject params = new JSONObject();
+        params.put("sessionId", "4c7d3a9e-1b2f-4e5a-9c8d-7f6e5d4c3b2a");
+        params.put("imageBlockNum", ++blockNum);
+        params.put("withMetadata", "true");
+        return session.createJsonRequest("readImageBlock", params);
+    }
+
+    @Benchmark
+    public String newCommandId() {
+        return CommandEncoder.newCommandId();
+    }
+
+    @Benchmark
+    public String randomUUID() {
+        return UUID.randomUUID().toString();
+    }
+}
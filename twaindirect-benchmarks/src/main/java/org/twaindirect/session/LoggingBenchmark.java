@@ -0,0 +1,67 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The debug logging done for each command, with those levels disabled as they are in
+ * production. eager is how the library used to build its messages, lazy is LazyLog.
+ *
+ * Run with -prof gc to compare the allocation per command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoggingBenchmark {
+    private static final Logger eagerLogger = Logger.getLogger(LoggingBenchmark.class.getName() + ".eager");
+    private static final LazyLog lazyLogger = LazyLog.getLog(LoggingBenchmark.class);
+
+    private JSONObject request;
+    private JSONObject response;
+    private String commandId = "2f1c7b9e-6d4a-4e8b-a3c5-9b0d1e2f3a4b";
+
+    @Setup
+    public void setUp() {
+        eagerLogger.setLevel(Level.INFO);
+        lazyLogger.getLogger().setLevel(Level.INFO);
+
+        request = new JSONObject("{\"kind\":\"twainlocalscanner\",\"commandId\":\"" + commandId + "\",\"method\":\"waitForEvents\","
+                + "\"params\":{\"sessionId\":\"4c7d3a9e-1b2f-4e5a-9c8d-7f6e5d4c3b2a\",\"sessionRevision\":12}}");
+        response = new JSONObject("{\"kind\":\"twainlocalscanner\",\"commandId\":\"" + commandId + "\",\"method\":\"waitForEvents\","
+                + "\"results\":{\"success\":true,\"events\":[{\"event\":\"imageBlocks\",\"session\":{\"sessionId\":\"4c7d3a9e-1b2f-4e5a-9c8d-7f6e5d4c3b2a\","
+                + "\"revision\":13,\"state\":\"capturing\",\"status\":{\"success\":true,\"detected\":\"nominal\"},"
+                + "\"imageBlocks\":[12,13,14,15],\"imageBlocksDrained\":false}}]}}");
+    }
+
+    @Benchmark
+    public void eager() {
+        eagerLogger.finer("Executing JSON request for http://scanner.local/privet/twaindirect/session commandId " + commandId);
+        eagerLogger.finest("Request body: " + request.toString(2));
+        eagerLogger.log(Level.FINE, "Event received: " + response.toString());
+        eagerLogger.fine(String.format("updateSession: %s", response.getJSONObject("results").toString()));
+    }
+
+    @Benchmark
+    public void lazy() {
+        lazyLogger.finer("Executing JSON request for %s commandId %s", "http://scanner.local/privet/twaindirect/session", commandId);
+        lazyLogger.finest("Request body: %s", LazyLog.prettyJson(request));
+        lazyLogger.fine("Event received: %s", LazyLog.json(response));
+        lazyLogger.fine("updateSession: %s", LazyLog.json(response.getJSONObject("results")));
+    }
+}
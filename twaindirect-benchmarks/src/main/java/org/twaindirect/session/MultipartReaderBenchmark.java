@@ -0,0 +1,112 @@
+package org.twaindirect.session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a readImageBlock response with MultipartReader, with and without Content-Length
+ * headers on the parts, and with a new or a pooled read buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultipartReaderBenchmark {
+    private static final String boundary = "twaindirect-benchmark-6a0f1b4c";
+
+    @Param({"65536", "1048576"})
+    public int imageSize;
+
+    @Param({"true", "false"})
+    public boolean contentLength;
+
+    private byte[] response;
+
+    // Discards what it's given, so we measure the parsing and not the destination
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private final OutputStream sink = new NullOutputStream();
+
+    @Setup
+    public void setUp() throws IOException {
+        String json = "{\"kind\":\"twainlocalscanner\",\"method\":\"readImageBlock\",\"results\":{\"success\":true,"
+                + "\"metadata\":{\"address\":{\"sheetNumber\":1,\"imageNumber\":1,\"imagePart\":1,\"moreParts\":\"lastPartInFile\"},"
+                + "\"status\":{\"success\":true}}}}";
+
+        byte[] image = new byte[imageSize];
+        for (int idx = 0; idx < image.length; idx++) {
+            image[idx] = (byte)(idx * 31);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writePart(body, "application/json; charset=UTF-8", json.getBytes("UTF-8"));
+        writePart(body, "application/pdf", image);
+        body.write(("--" + boundary + "--\r\n").getBytes("US-ASCII"));
+        response = body.toByteArray();
+    }
+
+    private void writePart(ByteArrayOutputStream body, String contentType, byte[] data) throws IOException {
+        String headers = "--" + boundary + "\r\nContent-Type: " + contentType + "\r\n";
+        if (contentLength) {
+            headers += "Content-Length: " + data.length + "\r\n";
+        }
+        headers += "\r\n";
+        body.write(headers.getBytes("US-ASCII"));
+        body.write(data);
+        body.write("\r\n".getBytes("US-ASCII"));
+    }
+
+    @Benchmark
+    public void readImageBlockResponse(Blackhole blackhole) throws IOException {
+        read(new MultipartReader(new ByteArrayInputStream(response)), blackhole);
+    }
+
+    // Reading through a buffer from BufferPool, as BlockDownloader does
+    @Benchmark
+    public void readImageBlockResponsePooled(Blackhole blackhole) throws IOException {
+        BufferPool pool = BufferPool.getSharedPool();
+        ByteBuffer buffer = pool.acquire();
+        try {
+            read(new MultipartReader(new ByteArrayInputStream(response), null, buffer.array()), blackhole);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private void read(MultipartReader reader, Blackhole blackhole) throws IOException {
+        while (reader.nextPart()) {
+            if (reader.getContentType().startsWith("application/json")) {
+                blackhole.consume(reader.readBody());
+            } else {
+                blackhole.consume(reader.copyBody(sink));
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.twaindirect.session;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the session object from a waitForEvents event into a SessionSnapshot.
+ * Run with -prof gc to see the allocation per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SessionSnapshotBenchmark {
+    // Number of image blocks listed in the session
+    @Param({"4", "64"})
+    public int imageBlocks;
+
+    private JSONObject session;
+
+    @Setup
+    public void setUp() {
+        JSONArray blocks = new JSONArray();
+        for (int idx = 1; idx <= imageBlocks; idx++) {
+            blocks.put(idx);
+        }
+
+        session = new JSONObject();
+        session.put("sessionId", "4c7d3a9e-1b2f-4e5a-9c8d-7f6e5d4c3b2a");
+        session.put("revision", 12);
+        session.put("state", "capturing");
+        session.put("imageBlocks", blocks);
+        session.put("doneCapturing", false);
+        session.put("imageBlocksDrained", false);
+        session.put("status", new JSONObject("{\"success\":true,\"detected\":\"nominal\"}"));
+    }
+
+    @Benchmark
+    public SessionSnapshot fromJSON() throws SessionException {
+        return SessionSnapshot.fromJSON(session);
+    }
+}
@@ -0,0 +1,80 @@
+package org.twaindirect.session;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a waitForEvents response with StreamUtils.inputStreamToJSONObject, which
+ * parses straight from the stream, against reading it into a String and parsing that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StreamUtilsBenchmark {
+    // Number of image blocks listed in the session
+    @Param({"4", "64"})
+    public int imageBlocks;
+
+    private byte[] response;
+
+    @Setup
+    public void setUp() throws IOException {
+        JSONArray blocks = new JSONArray();
+        for (int idx = 1; idx <= imageBlocks; idx++) {
+            blocks.put(idx);
+        }
+
+        JSONObject session = new JSONObject();
+        session.put("sessionId", "4c7d3a9e-1b2f-4e5a-9c8d-7f6e5d4c3b2a");
+        session.put("revision", 12);
+        session.put("state", "capturing");
+        session.put("imageBlocks", blocks);
+        session.put("doneCapturing", false);
+        session.put("imageBlocksDrained", false);
+        session.put("status", new JSONObject("{\"success\":true,\"detected\":\"nominal\"}"));
+
+        JSONObject event = new JSONObject();
+        event.put("event", "imageBlocks");
+        event.put("session", session);
+
+        JSONObject results = new JSONObject();
+        results.put("success", true);
+        results.put("events", new JSONArray().put(event));
+
+        JSONObject body = new JSONObject();
+        body.put("kind", "twainlocalscanner");
+        body.put("commandId", "0b1c2d3e-4f5a-6b7c-8d9e-0f1a2b3c4d5e");
+        body.put("method", "waitForEvents");
+        body.put("results", results);
+
+        response = body.toString(2).getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public JSONObject inputStreamToJSONObject() throws IOException {
+        return StreamUtils.inputStreamToJSONObject(new ByteArrayInputStream(response));
+    }
+
+    @Benchmark
+    public JSONObject stringThenParse() throws IOException {
+        return new JSONObject(StreamUtils.inputStreamToString(new ByteArrayInputStream(response)));
+    }
+}
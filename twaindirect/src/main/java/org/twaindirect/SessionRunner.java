@@ -0,0 +1,186 @@
+package org.twaindirect;
+
+import org.json.JSONObject;
+import org.twaindirect.session.AsyncResponse;
+import org.twaindirect.session.AsyncResult;
+import org.twaindirect.session.LazyLog;
+import org.twaindirect.session.Session;
+import org.twaindirect.session.SessionListener;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a complete scan on a Session: open the session, send the task, start capturing,
+ * and wait until the scanner is done and every image has been delivered.
+ *
+ * Session events are passed on to the listener supplied to the constructor, if any.
+ * Used by the TwainDirect command line tool, and by the throughput benchmarks.
+ */
+public class SessionRunner implements SessionListener {
+    private static final LazyLog logger = LazyLog.getLog(SessionRunner.class);
+
+    private final Session session;
+    private final JSONObject task;
+    private final SessionListener listener;
+
+    // Called once, when the scan finishes or fails
+    private AsyncResponse completion;
+
+    /**
+     * @param session The session to scan from. Its tempDir must already be set.
+     * @param task The task to send to the scanner
+     * @param listener Receives the session's events, or null
+     */
+    public SessionRunner(Session session, JSONObject task, SessionListener listener) {
+        this.session = session;
+        this.task = task;
+        this.listener = listener;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Start the scan. The completion is told when the scan is done, or if it fails to start.
+     * @param completion
+     */
+    public void start(AsyncResponse completion) {
+        synchronized(this) {
+            this.completion = completion;
+        }
+
+        session.setSessionListener(this);
+        session.open(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+                logger.info("Session open succeeded: %s", session);
+                sendTask();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                finish(e);
+            }
+        });
+    }
+
+    /**
+     * Run the scan, and wait for it to finish.
+     * @param timeout Maximum time to wait, in milliseconds
+     */
+    public void run(long timeout) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+
+        start(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error[0] = e;
+                done.countDown();
+            }
+        });
+
+        if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("Scan did not finish in " + timeout + "ms");
+        }
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    private void sendTask() {
+        session.sendTask(task, new AsyncResult<JSONObject>() {
+            @Override
+            public void onResult(JSONObject result) {
+                logger.info("Success response from sending task: %s", LazyLog.json(result));
+                startCapturing();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                finish(e);
+            }
+        });
+    }
+
+    private void startCapturing() {
+        session.startCapturing(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+                logger.info("startCapturing succeeded .. waiting for pages");
+            }
+
+            @Override
+            public void onError(Exception e) {
+                finish(e);
+            }
+        });
+    }
+
+    // Tell the completion how it went, the first time we're called
+    private void finish(Exception e) {
+        AsyncResponse response;
+        synchronized(this) {
+            response = completion;
+            completion = null;
+        }
+
+        if (response == null) {
+            return;
+        }
+
+        if (e == null) {
+            response.onSuccess();
+        } else {
+            response.onError(e);
+        }
+    }
+
+    @Override
+    public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+        if (listener != null) {
+            listener.onImageReceived(session, pdfPath, metadata);
+        }
+    }
+
+    @Override
+    public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
+        if (listener != null) {
+            listener.onStateChanged(session, oldState, newState);
+        }
+    }
+
+    @Override
+    public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
+        if (listener != null) {
+            listener.onStatusChanged(session, success, status);
+        }
+    }
+
+    @Override
+    public void onDoneCapturing(Session session) {
+        if (listener != null) {
+            listener.onDoneCapturing(session);
+        }
+        finish(null);
+    }
+
+    @Override
+    public void onConnectionError(Session session, Exception reason) {
+        // Not necessarily fatal - a block download may have failed - so leave it to the
+        // listener to decide
+        if (listener != null) {
+            listener.onConnectionError(session, reason);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.twaindirect.cloud.CloudConnection;
 import org.twaindirect.cloud.CloudSession;
 import org.twaindirect.session.AsyncResponse;
 import org.twaindirect.session.AsyncResult;
+import org.twaindirect.session.LazyLog;
 import org.twaindirect.session.Session;
 import org.twaindirect.session.SessionListener;
 
@@ -12,7 +13,6 @@ import java.io.File;
 import java.net.URI;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
-import java.util.logging.Logger;
 
 /**
  * TWAIN Direct Library Development Testing Class
@@ -27,7 +27,7 @@ public class TwainDirect {
     Session session;
     String authToken;
 
-    private static final Logger logger = Logger.getLogger(TwainDirect.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(TwainDirect.class);
 
     public static void main(String[] args) {
         try {
@@ -85,26 +85,25 @@ public class TwainDirect {
         this.session = session;
         session.setTempDir(new File("/tmp"));
 
-        session.setSessionListener(new SessionListener() {
+        SessionListener listener = new SessionListener() {
             @Override
             public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
-                logger.info(String.format("onImageReceived " + pdfPath.toString()));
+                logger.info("onImageReceived %s", pdfPath);
             }
 
             @Override
             public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
-                logger.info(String.format("onStateChanged, old=%s, new=%s", oldState, newState));
+                logger.info("onStateChanged, old=%s, new=%s", oldState, newState);
             }
 
             @Override
             public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
-                logger.info(String.format("onStatusChanged, success=%s, status=%s", success, status));
+                logger.info("onStatusChanged, success=%s, status=%s", success, status);
             }
 
             @Override
             public void onDoneCapturing(Session session) {
                 logger.info("onDoneCapturing");
-                System.exit(0);
             }
 
             @Override
@@ -114,20 +113,20 @@ public class TwainDirect {
                     logger.severe(e.toString());
                 }
             }
-        });
+        };
 
-
-        session.open(new AsyncResponse() {
+        SessionRunner runner = new SessionRunner(session, defaultTask(), listener);
+        runner.start(new AsyncResponse() {
             @Override
             public void onSuccess() {
-                System.out.println("Session open succeeded: " + session.toString());
-                sendTask();
+                System.exit(0);
             }
 
             @Override
             public void onError(Exception e) {
-                System.out.println("Session open failed:");
+                System.out.println("Scan failed:");
                 e.printStackTrace();
+                System.exit(1);
             }
         });
     }
@@ -149,42 +148,11 @@ public class TwainDirect {
         });
     }
 
-    private void sendTask() {
-        // Let's send a task
-//        JSONObject task = new JSONObject("{\"actions\": [ { \"action\": \"configure\" } ] }");
-
+    /**
+     * The task sent to the scanner by the command line tool.
+     */
+    public static JSONObject defaultTask() {
         // This task requests a B&W image
-        JSONObject task = new JSONObject("{\"actions\":[{\"action\":\"configure\",\"streams\":[{\"sources\":[{\"source\":\"any\",\"pixelFormats\":[{\"pixelFormat\":\"bw1\",\"attributes\":[{\"attribute\":\"compression\",\"values\":[{\"value\":\"autoVersion1\"}]},{\"attribute\":\"numberOfSheets\",\"values\":[{\"value\":1}]}]}]}]}]}]}}");
-
-        session.sendTask(task, new AsyncResult<JSONObject>() {
-            @Override
-            public void onResult(JSONObject result) {
-                System.out.println("Success response from sending task: " + result.toString());
-
-                // Let's move on to requesting an image
-                startCapturing();
-            }
-
-            @Override
-            public void onError(Exception e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-        });
-    }
-
-    private void startCapturing() {
-        session.startCapturing(new AsyncResponse() {
-            @Override
-            public void onSuccess() {
-                System.out.println("startCapturing succeeded .. waiting for pages");
-            }
-
-            @Override
-            public void onError(Exception e) {
-                System.out.println("startCapturing failed");
-                e.printStackTrace();
-            }
-        });
+        return new JSONObject("{\"actions\":[{\"action\":\"configure\",\"streams\":[{\"sources\":[{\"source\":\"any\",\"pixelFormats\":[{\"pixelFormat\":\"bw1\",\"attributes\":[{\"attribute\":\"compression\",\"values\":[{\"value\":\"autoVersion1\"}]},{\"attribute\":\"numberOfSheets\",\"values\":[{\"value\":1}]}]}]}]}]}]}}");
     }
 }
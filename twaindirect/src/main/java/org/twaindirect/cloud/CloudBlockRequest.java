@@ -1,19 +1,24 @@
 package org.twaindirect.cloud;
 
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGetHC4;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.util.EntityUtilsHC4;
 import org.twaindirect.session.AsyncResult;
-import org.twaindirect.session.HttpClientBuilder;
+import org.twaindirect.session.BlockingTransport;
+import org.twaindirect.session.HttpClientPool;
+import org.twaindirect.session.LazyLog;
+import org.twaindirect.session.ScannerTransport;
+import org.twaindirect.session.StreamUtils;
+import org.twaindirect.session.TransportRequest;
+import org.twaindirect.session.TransportResponse;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.logging.Logger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
 /**
  * Download an image block from the cloud endpoint.
@@ -21,7 +26,7 @@ import java.util.logging.Logger;
  * encoded image data.
  */
 public class CloudBlockRequest implements Runnable {
-    private static final Logger logger = Logger.getLogger(CloudBlockRequest.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(CloudBlockRequest.class);
 
     public CloudBlockRequest(CloudConnection cloudConnection) {
         this.cloudConnection = cloudConnection;
@@ -48,51 +53,177 @@ public class CloudBlockRequest implements Runnable {
     // Have we already attempted to refresh an expired access token?
     private boolean attemptedTokenRefresh = false;
 
+    // Sends the request. If this isn't set, a BlockingTransport on httpClientPool is used.
+    public ScannerTransport transport;
+
+    // Source of the HttpClient used to send the request, if transport isn't set
+    public HttpClientPool httpClientPool;
+
+    // Set once the listener has been called
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    // Counted down once the listener has returned
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    /**
+     * Send the request, and wait until the listener has been called.
+     */
     @Override
     public void run() {
-        String result = null;
-        try {
-            logger.info("Requesting image block from " + url.toString());
+        send();
 
-            //Create a connection
-            CloseableHttpClient httpClient = HttpClientBuilder.createHttpClient(url.getHost(), null);
-            HttpGetHC4 request = new HttpGetHC4(url.toString());
+        try {
+            // The transport's own timeouts should end the request first. This makes sure a
+            // response that never comes can't hold the thread forever.
+            if (!completed.await(connectTimeout + readTimeout, TimeUnit.MILLISECONDS)) {
+                if (!started.compareAndSet(false, true)) {
+                    // The listener is reading the block, and the socket timeout bounds that
+                    completed.await();
+                    return;
+                }
 
-            RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
-            request.setConfig(requestConfig);
+                try {
+                    listener.onError(new TimeoutException());
+                } finally {
+                    completed.countDown();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            request.addHeader("Content-Type", "application/json; charset=UTF-8");
-            request.addHeader("Authorization", cloudConnection.getAccessToken());
+    /**
+     * Send the request. With an asynchronous transport this returns straight away, and the
+     * listener is called once the response arrives.
+     */
+    public void send() {
+        logger.info("Requesting image block from %s", url);
+
+        TransportRequest request = new TransportRequest();
+        request.method = "GET";
+        request.url = url;
+        request.connectTimeout = connectTimeout;
+        request.readTimeout = readTimeout;
+        request.headers.put("Content-Type", "application/json; charset=UTF-8");
+        request.headers.put("Authorization", cloudConnection.getAccessToken());
+
+        // Set any custom headers
+        request.headers.putAll(headers);
+
+        ScannerTransport sender = transport;
+        if (sender == null) {
+            sender = new BlockingTransport(httpClientPool != null ? httpClientPool : cloudConnection.getHttpClientPool());
+        }
 
-            // Set any custom headers
-            for (String key : headers.keySet()) {
-                request.addHeader(key, headers.get(key));
+        sender.send(request, new AsyncResult<TransportResponse>() {
+            @Override
+            public void onResult(TransportResponse response) {
+                try {
+                    processResponse(response);
+                } finally {
+                    // Drain anything the listener didn't read, so the connection can be reused
+                    response.close();
+                }
             }
 
-            // Send the request, pass on the response
-            CloseableHttpResponse response = httpClient.execute(request);
+            @Override
+            public void onError(Exception e) {
+                finish(e);
+            }
+        });
+    }
 
-            // 401 can mean our OAuth2 access token has expired. Attempt to refresh it.
-            if (response.getStatusLine().getStatusCode() != 200) {
-                // 401 can mean our OAuth2 access token has expired. Attempt to refresh it.
-                if (response.getStatusLine().getStatusCode() == 401 && !attemptedTokenRefresh) {
-                    attemptedTokenRefresh = true;
-                    if (cloudConnection.refreshToken()) {
-                        // Retry
-                        run();
-                        return;
-                    }
+    private void processResponse(TransportResponse response) {
+        if (response.getStatusCode() != 200) {
+            if (logger.isLoggable(Level.FINEST)) {
+                try {
+                    logger.finest(StreamUtils.inputStreamToString(response.getContent()));
+                } catch (IOException e) {
+                    // Just for logging
                 }
+            }
+            response.close();
 
-                String responseBody = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
-                logger.finest(responseBody);
-                listener.onError(new Exception("HTTP response " + response.getStatusLine().toString()));
+            Exception error = new Exception("HTTP response " + response.getStatusLine());
+
+            // 401 can mean our OAuth2 access token has expired. Attempt to refresh it.
+            if (response.getStatusCode() == 401 && !attemptedTokenRefresh) {
+                attemptedTokenRefresh = true;
+                refreshTokenAndRetry(error);
                 return;
             }
 
-            listener.onResult(response.getEntity().getContent());
+            finish(error);
+            return;
+        }
+
+        InputStream content;
+        try {
+            content = response.getContent();
         } catch (IOException e) {
+            finish(e);
+            return;
+        }
+
+        if (!started.compareAndSet(false, true)) {
+            // Already timed out
+            return;
+        }
+
+        try {
+            listener.onResult(content);
+        } finally {
+            completed.countDown();
+        }
+    }
+
+    /**
+     * Refresh the access token and send the request again, or fail with error if the
+     * refresh doesn't work. The refresh blocks, so with an asynchronous transport it's
+     * done on the connection's executor rather than the transport's callback thread.
+     */
+    private void refreshTokenAndRetry(final Exception error) {
+        if (transport == null || !transport.isAsync()) {
+            if (cloudConnection.refreshToken()) {
+                send();
+            } else {
+                finish(error);
+            }
+            return;
+        }
+
+        cloudConnection.refreshTokenAsync(new AsyncResult<Boolean>() {
+            @Override
+            public void onResult(Boolean refreshed) {
+                if (started.get()) {
+                    // Timed out while refreshing
+                    return;
+                }
+
+                if (refreshed) {
+                    send();
+                } else {
+                    finish(error);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                finish(e);
+            }
+        });
+    }
+
+    private void finish(Exception e) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
             listener.onError(e);
+        } finally {
+            completed.countDown();
         }
     }
 }
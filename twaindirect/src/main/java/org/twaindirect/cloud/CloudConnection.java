@@ -8,8 +8,9 @@ import org.apache.http.util.EntityUtilsHC4;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.twaindirect.session.AsyncResult;
-import org.twaindirect.session.HttpClientBuilder;
+import org.twaindirect.session.HttpClientPool;
 import org.twaindirect.session.HttpJsonRequest;
+import org.twaindirect.session.LazyLog;
 import org.twaindirect.session.URIUtils;
 
 import java.io.IOException;
@@ -19,14 +20,13 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.logging.Logger;
 
 /**
  * Manage a connection to a TWAIN Cloud service.
  * This includes the REST API and the MQTT events listener.
  */
 public class CloudConnection {
-    private static final Logger logger = Logger.getLogger(CloudConnection.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(CloudConnection.class);
 
     // URL for the REST API
     private URI apiUrl;
@@ -44,6 +44,9 @@ public class CloudConnection {
 
     private ExecutorService executor = Executors.newFixedThreadPool(1);
 
+    // Clients for the cloud API and block downloads, shared by every request we make
+    private final HttpClientPool httpClientPool = new HttpClientPool();
+
     // Interface used to listen for token refreshes so the updated
     // tokens can be saved for the next session.
     public interface TokenRefreshListener {
@@ -110,6 +113,7 @@ public class CloudConnection {
         request.url = URIUtils.appendPathToURI(apiUrl, "/scanners");
         request.method = "GET";
         request.cloudConnection = this;
+        request.httpClientPool = httpClientPool;
 
         request.listener = new AsyncResult<JSONObject>() {
             @Override
@@ -135,6 +139,7 @@ public class CloudConnection {
         request.url = URIUtils.appendPathToURI(apiUrl, "/user");
         request.method = "GET";
         request.cloudConnection = this;
+        request.httpClientPool = httpClientPool;
 
         request.listener = new AsyncResult<JSONObject>() {
             @Override
@@ -178,6 +183,7 @@ public class CloudConnection {
         request.url = URIUtils.appendPathToURI(apiUrl, "/scanners/" + scannerId);
         request.method = "GET";
         request.cloudConnection = this;
+        request.httpClientPool = httpClientPool;
 
         request.listener = new AsyncResult<JSONObject>() {
             @Override
@@ -225,15 +231,20 @@ public class CloudConnection {
 
             CloseableHttpClient httpClient = null;
             try {
-                httpClient = HttpClientBuilder.createHttpClient(uri.getHost(), null);
+                httpClient = httpClientPool.getHttpClient(uri.getHost(), null);
                 HttpRequestBaseHC4 request = new HttpGetHC4(uri.toString());
                 request.addHeader("Authorization", accessToken);
                 CloseableHttpResponse response = httpClient.execute(request);
+                String json;
+                try {
+                    json = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
+                } finally {
+                    response.close();
+                }
                 if (response.getStatusLine().getStatusCode() != 200) {
-                    logger.warning("Token refresh returned " + response.getStatusLine().toString());
+                    logger.warning("Token refresh returned %s", response.getStatusLine());
                     return false;
                 }
-                String json = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
                 JSONObject jsonObject = new JSONObject(json);
                 accessToken = jsonObject.getString("authorizationToken");
                 refreshToken = jsonObject.getString("refreshToken");
@@ -252,6 +263,35 @@ public class CloudConnection {
         }
     }
 
+    /**
+     * Refresh the access token on the connection's executor, and tell the listener whether
+     * it worked. For callers that mustn't block, such as an asynchronous transport's
+     * callbacks.
+     * @param listener
+     */
+    public void refreshTokenAsync(final AsyncResult<Boolean> listener) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean refreshed;
+                try {
+                    refreshed = refreshToken();
+                } catch (RuntimeException e) {
+                    listener.onError(e);
+                    return;
+                }
+                listener.onResult(refreshed);
+            }
+        });
+    }
+
+    /**
+     * The pool of HttpClients used to talk to the cloud service.
+     */
+    public HttpClientPool getHttpClientPool() {
+        return httpClientPool;
+    }
+
     public URI getApiUrl() {
         return apiUrl;
     }
@@ -9,32 +9,88 @@ import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.twaindirect.session.AsyncResponse;
+import org.twaindirect.session.LazyLog;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.logging.Logger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 /**
  * Subscribe to the scanner's MQTT response topic and broker messages.
  * Commands register the command ID with CloudEventBroker, and responses are
  * dispatched as they arrive.
+ *
+ * Messages are decoded off the MQTT callback thread and delivered on a small pool,
+ * so one slow listener doesn't hold up every other command. Responses to waitForEvents
+ * for the same session are still delivered in the order they arrived.
  */
 public class CloudEventBroker {
-    private static final Logger logger = Logger.getLogger(CloudEventBroker.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(CloudEventBroker.class);
 
     String authToken;
     CloudEventBrokerInfo eventBrokerInfo;
     MqttAsyncClient client;
-    Map<String, MqttMessage> messagesReceived = new HashMap<>();
+
+    // Key used for listeners and messages that have no command ID
+    private static final String noCommandId = "";
+
+    // Responses that arrive before their listener is registered are kept for this long
+    private static final long parkedMessageLifetime = 30000;
+
+    // Maximum number of responses we'll hold waiting for a listener
+    private static final int maxParkedMessages = 32;
+
+    /**
+     * Responses that arrived with no registered listener, keyed by command ID, oldest first.
+     * Guarded by synchronized(messagesReceived).
+     */
+    final Map<String, ParkedMessage> messagesReceived = new LinkedHashMap<String, ParkedMessage>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ParkedMessage> eldest) {
+            return size() > maxParkedMessages;
+        }
+    };
 
     /**
-     * When we receive a message, we walk the listeners list looking for someone to deliver it to
+     * Listeners waiting for a response, keyed by command ID.
      */
-    List<CloudEventBrokerListener> listeners = new ArrayList<>();
+    final ConcurrentHashMap<String, CloudEventBrokerListener> listeners = new ConcurrentHashMap<>();
+
+    // A response waiting for its listener
+    static class ParkedMessage {
+        final JSONObject body;
+        final long arrivalTime;
+
+        ParkedMessage(JSONObject body, long arrivalTime) {
+            this.body = body;
+            this.arrivalTime = arrivalTime;
+        }
+    }
+
+    // Number of threads delivering responses to listeners
+    private static final int deliveryThreads = 4;
+
+    // Idle decode and delivery threads exit after this many milliseconds
+    private static final int keepAliveTime = 30000;
+
+    // Decodes MQTT messages in the order they arrive, off Paho's callback thread
+    private final ExecutorService decodeExecutor = createExecutor("CloudEventBroker-decode", 1);
+
+    // Delivers decoded responses to their listeners
+    private final KeyedSerialExecutor deliveryExecutor =
+            new KeyedSerialExecutor(createExecutor("CloudEventBroker-deliver", deliveryThreads));
 
     public CloudEventBroker(String authToken, CloudEventBrokerInfo eventBrokerInfo) throws MqttException {
         this.eventBrokerInfo = eventBrokerInfo;
@@ -48,43 +104,14 @@ public class CloudEventBroker {
 
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
-                logger.info("MQTT message arrived");
-                String payloadJSON = new String(message.getPayload());
-                JSONObject payload = new JSONObject(payloadJSON);
-                logger.fine(payload.toString(2));
-
-                // Message typically looks like this:
-                // {
-                //  "headers": {"content-Type": "application/json; charset=UTF-8"},
-                //  "statusDescription": null,
-                //  "requestId": null,
-                //  "body": "{\"version\":\"1.0\",\"name\":\"TWAIN2 FreeImage Software Scanner\",\"description\":\"Sample DS\",\"url\":\"\",\"type\":\"twaindirect\",\"id\":\"\",\"device_state\":\"idle\",\"connection_state\":\"offline\",\"manufacturer\":\"TWAIN Working Group\",\"model\":\"TWAIN2 FreeImage Software Scanner\",\"serial_number\":\"X\",\"firmware\":\"2.1:1.2\",\"uptime\":\"1436\",\"setup_url\":\"\",\"support_url\":\"\",\"update_url\":\"\",\"x-privet-token\":\"50gbKrsF235rSr6RI58PSGghbpA=:636696641228998209\",\"api\":[\"/privet/twaindirect/session\"],\"semantic_state\":\"\",\"clouds\":[{\"url\":\"https://api-twain.hazybits.com/dev\",\"id\":\"3c807fab-07c2-4710-be56-5c6b40bedcaa\",\"connection_state\":\"online\",\"setup_url\":\"\",\"support_url\":\"\",\"update_url\":\"\"}]}",
-                //  "statusCode": 200
-                // }
-
-                // Pick the right listener based on the command ID
-                String bodyJSON = payload.getString("body");
-                JSONObject body = new JSONObject(bodyJSON);
-                logger.fine("Decoded message body: " + body.toString(2));
-                String commandId = null;
-                if (body.has("commandId")) {
-                    commandId = body.getString("commandId");
-                }
-                CloudEventBrokerListener foundListener = null;
-                for (CloudEventBrokerListener listener : listeners) {
-                    String listenerCommandId = listener.getCommandId();
-                    if ((listenerCommandId== null ? commandId == null : listenerCommandId.equals(commandId))) {
-                        foundListener = listener;
-                        break;
+                // Don't hold up Paho's callback thread, decode and deliver elsewhere
+                final byte[] payload = message.getPayload();
+                decodeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        decodeMessage(payload);
                     }
-                }
-
-                if (foundListener == null) {
-                    logger.warning("Received command with no registered listener");
-                } else {
-                    removeListener(foundListener);
-                }
-                foundListener.deliverJSONResponse(bodyJSON);
+                });
             }
 
             @Override
@@ -96,25 +123,152 @@ public class CloudEventBroker {
     }
 
     /**
-     * Add a command listener.
+     * Decode an MQTT message and pass its body to the listener for its command.
+     * Runs on decodeExecutor, so messages are decoded in the order they arrived.
+     */
+    void decodeMessage(byte[] message) {
+        logger.info("MQTT message arrived");
+
+        // Message typically looks like this:
+        // {
+        //  "headers": {"content-Type": "application/json; charset=UTF-8"},
+        //  "statusDescription": null,
+        //  "requestId": null,
+        //  "body": "{\"version\":\"1.0\",\"name\":\"TWAIN2 FreeImage Software Scanner\",\"description\":\"Sample DS\",\"url\":\"\",\"type\":\"twaindirect\",\"id\":\"\",\"device_state\":\"idle\",\"connection_state\":\"offline\",\"manufacturer\":\"TWAIN Working Group\",\"model\":\"TWAIN2 FreeImage Software Scanner\",\"serial_number\":\"X\",\"firmware\":\"2.1:1.2\",\"uptime\":\"1436\",\"setup_url\":\"\",\"support_url\":\"\",\"update_url\":\"\",\"x-privet-token\":\"50gbKrsF235rSr6RI58PSGghbpA=:636696641228998209\",\"api\":[\"/privet/twaindirect/session\"],\"semantic_state\":\"\",\"clouds\":[{\"url\":\"https://api-twain.hazybits.com/dev\",\"id\":\"3c807fab-07c2-4710-be56-5c6b40bedcaa\",\"connection_state\":\"online\",\"setup_url\":\"\",\"support_url\":\"\",\"update_url\":\"\"}]}",
+        //  "statusCode": 200
+        // }
+
+        JSONObject body;
+        try {
+            JSONObject payload = new JSONObject(new String(message, "UTF-8"));
+            logger.fine("%s", LazyLog.prettyJson(payload));
+            body = new JSONObject(payload.getString("body"));
+        } catch (UnsupportedEncodingException | JSONException e) {
+            logger.log(Level.WARNING, "Unable to decode MQTT message", e);
+            return;
+        }
+
+        logger.fine("Decoded message body: %s", LazyLog.prettyJson(body));
+
+        // Pick the right listener based on the command ID
+        routeMessage(body.optString("commandId", null), body);
+    }
+
+    /**
+     * Responses to waitForEvents for the same session must be delivered in order, so
+     * they share a delivery lane. Anything else can be delivered concurrently.
+     */
+    static String deliveryLane(JSONObject body) {
+        if (!"waitForEvents".equals(body.optString("method"))) {
+            return null;
+        }
+
+        JSONObject results = body.optJSONObject("results");
+        JSONObject session = results == null ? null : results.optJSONObject("session");
+        String sessionId = session == null ? null : session.optString("sessionId", null);
+        return "waitForEvents/" + sessionId;
+    }
+
+    /**
+     * Deliver a response to the listener registered for its command ID, or hold on to
+     * it until that listener is added.
+     */
+    void routeMessage(String commandId, final JSONObject body) {
+        String key = commandId == null ? noCommandId : commandId;
+
+        CloudEventBrokerListener listener = listeners.remove(key);
+        if (listener == null) {
+            synchronized(messagesReceived) {
+                // Check again with the lock held, in case addListener just ran
+                listener = listeners.remove(key);
+                if (listener == null) {
+                    logger.fine("Received response with no registered listener, holding it");
+                    parkMessage(key, body);
+                    return;
+                }
+            }
+        }
+
+        final CloudEventBrokerListener foundListener = listener;
+        deliveryExecutor.execute(deliveryLane(body), new Runnable() {
+            @Override
+            public void run() {
+                deliver(foundListener, body);
+            }
+        });
+    }
+
+    // Must be called with messagesReceived locked
+    private void parkMessage(String key, JSONObject body) {
+        long now = System.currentTimeMillis();
+
+        // Drop anything that's been waiting too long
+        Iterator<ParkedMessage> iterator = messagesReceived.values().iterator();
+        while (iterator.hasNext() && now - iterator.next().arrivalTime > parkedMessageLifetime) {
+            iterator.remove();
+        }
+
+        messagesReceived.put(key, new ParkedMessage(body, now));
+    }
+
+    /**
+     * Add a command listener. If the response has already arrived, it's delivered
+     * straight away.
      * @param listener
      */
     public void addListener(CloudEventBrokerListener listener) {
-        synchronized(this) {
-            listeners.add(listener);
+        String commandId = listener.getCommandId();
+        String key = commandId == null ? noCommandId : commandId;
+
+        ParkedMessage parked;
+        synchronized(messagesReceived) {
+            parked = messagesReceived.remove(key);
+            if (parked == null || System.currentTimeMillis() - parked.arrivalTime > parkedMessageLifetime) {
+                listeners.put(key, listener);
+                return;
+            }
         }
+
+        deliver(listener, parked.body);
     }
 
     /**
-     * Remove a command listener.
-     * @param listener
+     * Hand a response to a listener, as a JSONObject if it takes one.
      */
-    private void removeListener(CloudEventBrokerListener listener) {
-        synchronized(this) {
-            listeners.remove(listener);
+    private static void deliver(CloudEventBrokerListener listener, JSONObject body) {
+        if (listener instanceof CloudEventBrokerJSONListener) {
+            ((CloudEventBrokerJSONListener)listener).deliverJSONResponse(body);
+        } else {
+            listener.deliverJSONResponse(body.toString());
         }
     }
 
+    /**
+     * Remove a command listener, for example when the command has timed out.
+     * @param listener
+     */
+    public void removeListener(CloudEventBrokerListener listener) {
+        String commandId = listener.getCommandId();
+        listeners.remove(commandId == null ? noCommandId : commandId, listener);
+    }
+
+    private static ExecutorService createExecutor(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                keepAliveTime, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Connect to the MQTT endpoint asynchronously.
      * @param completion
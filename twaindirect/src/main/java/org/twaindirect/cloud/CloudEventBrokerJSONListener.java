@@ -0,0 +1,15 @@
+package org.twaindirect.cloud;
+
+import org.json.JSONObject;
+
+/**
+ * CloudEventBrokerListener that takes the response as the JSONObject the broker has
+ * already decoded, so it isn't turned back into a string and parsed a second time.
+ *
+ * CloudEventBroker calls deliverJSONResponse(JSONObject) on these listeners, and never
+ * the String version.
+ */
+public interface CloudEventBrokerJSONListener extends CloudEventBrokerListener {
+    // Received a JSON response. Called on a CloudEventBroker delivery thread.
+    void deliverJSONResponse(JSONObject body);
+}
@@ -2,12 +2,14 @@ package org.twaindirect.cloud;
 
 /**
  * Listener interface used to deliver the result of CloudEventBroker.connect
+ *
+ * A listener that can take the response already parsed should implement
+ * CloudEventBrokerJSONListener instead.
  */
 public interface CloudEventBrokerListener {
     // Return the outstanding command ID
     String getCommandId();
 
-    // Received a JSON response
+    // Received a JSON response. Called on a CloudEventBroker delivery thread.
     void deliverJSONResponse(String body);
 }
-
@@ -0,0 +1,89 @@
+package org.twaindirect.cloud;
+
+import org.twaindirect.session.LazyLog;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+/**
+ * Runs tasks on a shared executor, but one at a time and in submission order for tasks
+ * that share a key. Tasks with different keys, or no key, run concurrently.
+ *
+ * A lane is created when a key is first used and dropped again once it has drained,
+ * so we don't accumulate state for sessions that have gone away.
+ */
+class KeyedSerialExecutor {
+    private static final LazyLog logger = LazyLog.getLog(KeyedSerialExecutor.class);
+
+    private final Executor executor;
+
+    // Lanes with queued or running tasks. Guarded by synchronized(lanes).
+    private final Map<String, Lane> lanes = new HashMap<>();
+
+    KeyedSerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Run a task after any earlier tasks submitted with the same key.
+     * @param key Ordering key, or null if the task can run in any order
+     */
+    void execute(String key, Runnable task) {
+        if (key == null) {
+            executor.execute(task);
+            return;
+        }
+
+        Lane lane;
+        synchronized(lanes) {
+            lane = lanes.get(key);
+            if (lane != null) {
+                // The lane is already running, it will pick this task up
+                lane.tasks.add(task);
+                return;
+            }
+
+            lane = new Lane(key);
+            lane.tasks.add(task);
+            lanes.put(key, lane);
+        }
+
+        executor.execute(lane);
+    }
+
+    // Tasks waiting to run for one key
+    private class Lane implements Runnable {
+        final String key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        Lane(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized(lanes) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        lanes.remove(key);
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // Keep the lane going for the tasks behind this one
+                    if (logger.isLoggable(Level.WARNING)) {
+                        logger.log(Level.WARNING, "Task for " + key + " failed", e);
+                    }
+                }
+            }
+        }
+    }
+}
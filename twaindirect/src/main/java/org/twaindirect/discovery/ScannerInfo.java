@@ -3,13 +3,13 @@ package org.twaindirect.discovery;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.twaindirect.cloud.CloudScannerInfo;
+import org.twaindirect.session.LazyLog;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.logging.Logger;
 
 /**
  * Wrapper for the information we have about a scanner, which is the URL, and
@@ -18,7 +18,7 @@ import java.util.logging.Logger;
  */
 
 public class ScannerInfo {
-    private static final Logger logger = Logger.getLogger(ScannerInfo.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(ScannerInfo.class);
 
     private static final String TAG = "ScannerInfo";
 
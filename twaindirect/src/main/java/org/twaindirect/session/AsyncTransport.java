@@ -0,0 +1,551 @@
+package org.twaindirect.session;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.conn.ssl.SSLContextBuilder;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.impl.conn.InMemoryDnsResolver;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ScannerTransport that sends requests with Apache HttpAsyncClient. Requests are
+ * multiplexed over pooled connections by a small number of non-blocking I/O threads,
+ * so the number in flight isn't bounded by the number of threads making them.
+ *
+ * Callbacks run on a separate pool of callback threads as soon as a response's headers
+ * arrive, and read the body as it streams in, so they're free to block (writing image
+ * blocks to disk, for example) without stalling the I/O threads. At most
+ * responseBufferSize bytes of each body are buffered: when a callback falls behind,
+ * reading from that connection is suspended until it catches up.
+ *
+ * Like HttpClientBuilder, the clients resolve the scanner's host name to its known IP
+ * address and accept its self-signed certificate. This needs the httpasyncclient
+ * library, which targets the standard Java runtime rather than Android, where
+ * BlockingTransport should be used.
+ */
+public class AsyncTransport implements ScannerTransport {
+    private static final LazyLog logger = LazyLog.getLog(AsyncTransport.class);
+
+    // Connections are never kept alive for longer than this, in seconds
+    private static final int connectionTimeToLive = 60;
+
+    // Non-blocking I/O threads per scanner host
+    public int ioThreads = 1;
+
+    // Maximum number of connections to a single scanner, and overall
+    public int maxConnectionsPerRoute = 16;
+    public int maxConnectionsTotal = 32;
+
+    // Bytes of each response body buffered ahead of the callback reading it
+    public int responseBufferSize = 65536;
+
+    // Clients by host and IP address, as in HttpClientPool
+    private final Map<String, CloseableHttpAsyncClient> clients = new HashMap<>();
+
+    // Requests that haven't finished yet
+    private final Set<StreamingExchange> exchanges =
+            Collections.newSetFromMap(new ConcurrentHashMap<StreamingExchange, Boolean>());
+
+    private final int callbackThreads;
+    private final int transportNumber;
+
+    // Runs the callbacks. Created when first needed, and shut down by close.
+    private ThreadPoolExecutor callbackExecutor;
+
+    private static final AtomicInteger transportCount = new AtomicInteger();
+
+    /**
+     * @param callbackThreads Number of threads to run callbacks on
+     */
+    public AsyncTransport(int callbackThreads) {
+        this.callbackThreads = callbackThreads;
+        this.transportNumber = transportCount.incrementAndGet();
+    }
+
+    public AsyncTransport() {
+        this(4);
+    }
+
+    @Override
+    public void send(TransportRequest request, final AsyncResult<TransportResponse> callback) {
+        CloseableHttpAsyncClient client;
+        try {
+            client = getClient(request.url.getHost(), request.ipaddr);
+        } catch (IOException e) {
+            callback.onError(e);
+            return;
+        }
+
+        URI url = request.url;
+        HttpHost target = new HttpHost(url.getHost(), url.getPort(), url.getScheme());
+        String path = url.getRawPath() == null || url.getRawPath().isEmpty() ? "/" : url.getRawPath();
+        if (url.getRawQuery() != null) {
+            path += "?" + url.getRawQuery();
+        }
+
+        HttpRequest httpRequest;
+        if (request.method.equals("POST")) {
+            BasicHttpEntityEnclosingRequest post = new BasicHttpEntityEnclosingRequest("POST", path);
+            if (request.body != null) {
+                post.setEntity(new NByteArrayEntity(request.body));
+            }
+            httpRequest = post;
+        } else if (request.method.equals("GET")) {
+            httpRequest = new BasicHttpRequest("GET", path);
+        } else {
+            throw new IllegalArgumentException("Unsupported method " + request.method);
+        }
+
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            httpRequest.addHeader(header.getKey(), header.getValue());
+        }
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(RequestConfig.custom()
+                .setConnectTimeout(request.connectTimeout)
+                .setConnectionRequestTimeout(request.connectTimeout)
+                .setSocketTimeout(request.readTimeout)
+                .build());
+
+        StreamingExchange exchange = new StreamingExchange(client, getCallbackExecutor(), callback,
+                responseBufferSize, exchanges);
+        exchanges.add(exchange);
+        client.execute(HttpAsyncMethods.create(target, httpRequest), exchange, context, exchange.futureCallback());
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    /**
+     * Close all the clients, their connections and their I/O threads, fail any requests
+     * still in flight, and let the callback threads exit once the callbacks already queued
+     * have run. They're all created again if the transport is used afterwards.
+     */
+    @Override
+    public void close() {
+        List<CloseableHttpAsyncClient> closing;
+        ThreadPoolExecutor executor;
+        synchronized(this) {
+            closing = new ArrayList<>(clients.values());
+            clients.clear();
+            executor = callbackExecutor;
+            callbackExecutor = null;
+        }
+
+        for (CloseableHttpAsyncClient client : closing) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                logger.warning(e.toString());
+            }
+        }
+
+        // A closed client just abandons its requests still in flight, so fail them here.
+        // Their callbacks need somewhere to run, so the executor is shut down last.
+        for (StreamingExchange exchange : new ArrayList<>(exchanges)) {
+            if (closing.contains(exchange.client)) {
+                exchange.abort(new IOException("Transport closed"));
+            }
+        }
+
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getCallbackExecutor() {
+        if (callbackExecutor == null) {
+            callbackExecutor = new ThreadPoolExecutor(callbackThreads, callbackThreads,
+                    30000, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AsyncTransport-" + transportNumber + "-callback-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            callbackExecutor.allowCoreThreadTimeOut(true);
+        }
+        return callbackExecutor;
+    }
+
+    private CloseableHttpAsyncClient getClient(String host, String ipaddr) throws IOException {
+        String key = ipaddr == null ? host : host + "/" + ipaddr;
+
+        synchronized(this) {
+            CloseableHttpAsyncClient client = clients.get(key);
+            if (client == null) {
+                logger.fine("Creating HttpAsyncClient for %s", key);
+                client = createClient(host, ipaddr);
+                client.start();
+                clients.put(key, client);
+            }
+            return client;
+        }
+    }
+
+    private CloseableHttpAsyncClient createClient(String host, String ipaddr) throws IOException {
+        InMemoryDnsResolver resolver = null;
+        if (ipaddr != null) {
+            resolver = new InMemoryDnsResolver();
+            resolver.add(host, InetAddress.getByName(ipaddr));
+        }
+
+        SSLIOSessionStrategy sslStrategy;
+        try {
+            SSLContextBuilder builder = new SSLContextBuilder();
+            builder.loadTrustMaterial(null, new TrustSelfSignedStrategy());
+            sslStrategy = new SSLIOSessionStrategy(builder.build());
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", sslStrategy)
+                .build();
+
+        final String name = "AsyncTransport-" + host + "-io-";
+        ThreadFactory ioThreadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        DefaultConnectingIOReactor ioReactor;
+        try {
+            ioReactor = new DefaultConnectingIOReactor(
+                    IOReactorConfig.custom().setIoThreadCount(ioThreads).setTcpNoDelay(true).build(),
+                    ioThreadFactory);
+        } catch (IOReactorException e) {
+            throw new IOException(e);
+        }
+
+        PoolingNHttpClientConnectionManager connManager = new PoolingNHttpClientConnectionManager(
+                ioReactor,
+                null, /* Default ConnectionFactory */
+                registry,
+                null, /* Default SchemePortResolver */
+                resolver, /* Our DnsResolver */
+                connectionTimeToLive, TimeUnit.SECONDS);
+        connManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connManager.setMaxTotal(maxConnectionsTotal);
+
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connManager)
+                .setThreadFactory(ioThreadFactory)
+                .build();
+    }
+
+    /**
+     * Consumes one response on the I/O thread, passing the body through a bounded buffer
+     * to the callback, which reads it on a callback thread.
+     *
+     * The callback is called as soon as the headers arrive. If the request fails before
+     * then, it gets onError instead; if it fails after, reading the body throws.
+     */
+    private static class StreamingExchange extends AbstractAsyncResponseConsumer<HttpResponse> {
+        final CloseableHttpAsyncClient client;
+        private final Executor callbackExecutor;
+        private final AsyncResult<TransportResponse> callback;
+        private final int bufferSize;
+
+        // The transport's unfinished exchanges, which this leaves once it's finished
+        private final Set<StreamingExchange> exchanges;
+
+        // Set once the callback has been given the response or an error
+        private final AtomicBoolean dispatched = new AtomicBoolean();
+
+        private HttpResponse response;
+        private volatile SharedInputBuffer body;
+
+        // Set once the whole body has been received
+        private volatile boolean bodyComplete;
+
+        // Set if the exchange failed or was cancelled before the whole body arrived
+        private volatile boolean aborted;
+
+        StreamingExchange(CloseableHttpAsyncClient client, Executor callbackExecutor,
+                          AsyncResult<TransportResponse> callback, int bufferSize,
+                          Set<StreamingExchange> exchanges) {
+            this.client = client;
+            this.callbackExecutor = callbackExecutor;
+            this.callback = callback;
+            this.bufferSize = bufferSize;
+            this.exchanges = exchanges;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) {
+            this.response = response;
+
+            InputStream content;
+            if (response.getEntity() != null) {
+                body = new SharedInputBuffer(bufferSize, HeapByteBufferAllocator.INSTANCE);
+                content = new BodyStream(body, this);
+            } else {
+                bodyComplete = true;
+                content = new ByteArrayInputStream(new byte[0]);
+            }
+
+            final Response transportResponse = new Response(response, content);
+            if (dispatched.compareAndSet(false, true)) {
+                try {
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(transportResponse);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The transport was closed. The body can't be read on this I/O thread,
+                    // so fail the request here instead.
+                    callback.onError(new IOException("Transport closed", e));
+                }
+            }
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+            // The body is read through the buffer made in onResponseReceived
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            // Suspends input on this connection while the buffer is full
+            body.consumeContent(decoder, ioctrl);
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            bodyComplete = true;
+            return response;
+        }
+
+        @Override
+        protected void releaseResources() {
+            abortBody();
+        }
+
+        private void abortBody() {
+            SharedInputBuffer body = this.body;
+            if (body != null && !bodyComplete) {
+                // Failed or cancelled part way through. Wake up the reader, which will
+                // see aborted when the buffer reports the end of the body.
+                aborted = true;
+                body.shutdown();
+            }
+        }
+
+        /**
+         * End an exchange its client has abandoned, failing the request or the body
+         * being read.
+         */
+        void abort(Exception e) {
+            exchanges.remove(this);
+            abortBody();
+            dispatchError(e);
+        }
+
+        private void dispatchError(final Exception e) {
+            if (!dispatched.compareAndSet(false, true)) {
+                return;
+            }
+
+            Runnable onError = new Runnable() {
+                @Override
+                public void run() {
+                    callback.onError(e);
+                }
+            };
+            try {
+                callbackExecutor.execute(onError);
+            } catch (RejectedExecutionException rejected) {
+                // The transport was closed. The caller still needs to hear.
+                onError.run();
+            }
+        }
+
+        /**
+         * Told when the whole exchange has finished. Only needs to pass on failures
+         * from before the headers arrived; the callback already has anything later.
+         */
+        FutureCallback<HttpResponse> futureCallback() {
+            return new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse result) {
+                    exchanges.remove(StreamingExchange.this);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    exchanges.remove(StreamingExchange.this);
+                    dispatchError(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    failed(new CancellationException());
+                }
+            };
+        }
+
+        IOException bodyFailure() {
+            Exception e = getException();
+            return e instanceof IOException ? (IOException)e : new IOException("Response body incomplete", e);
+        }
+    }
+
+    /**
+     * Reads a response body from its SharedInputBuffer, throwing if the exchange failed
+     * rather than ending the body early.
+     */
+    private static class BodyStream extends InputStream {
+        private final SharedInputBuffer buffer;
+        private final StreamingExchange exchange;
+
+        BodyStream(SharedInputBuffer buffer, StreamingExchange exchange) {
+            this.buffer = buffer;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = buffer.read();
+            if (result == -1) {
+                checkComplete();
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = buffer.read(b, off, len);
+            if (result == -1) {
+                checkComplete();
+            }
+            return result;
+        }
+
+        @Override
+        public int available() {
+            return buffer.available();
+        }
+
+        private void checkComplete() throws IOException {
+            if (exchange.aborted) {
+                throw exchange.bodyFailure();
+            }
+        }
+    }
+
+    private static class Response implements TransportResponse {
+        private final HttpResponse response;
+        private final InputStream content;
+        private boolean closed;
+
+        Response(HttpResponse response, InputStream content) {
+            this.response = response;
+            this.content = content;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public String getStatusLine() {
+            return response.getStatusLine().toString();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            Header header = response.getFirstHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return content;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // Read whatever the callback didn't, so the connection goes back into the pool
+            try {
+                byte[] buffer = new byte[4096];
+                while (content.read(buffer) != -1) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                logger.fine("Failed to drain response: %s", e);
+            }
+        }
+    }
+}
@@ -6,28 +6,27 @@ import org.twaindirect.cloud.CloudBlockRequest;
 import org.twaindirect.cloud.CloudConnection;
 import org.twaindirect.cloud.CloudEventBroker;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import javax.mail.BodyPart;
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMultipart;
 
 /**
  * This class is responsible for downloading blocks and delivering them to the client application.
@@ -45,7 +44,7 @@ import javax.mail.internet.MimeMultipart;
  */
 
 public class BlockDownloader {
-    private static final Logger logger = Logger.getLogger(BlockDownloader.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(BlockDownloader.class);
 
     // Reference to the owning session
     private Session session;
@@ -55,21 +54,65 @@ public class BlockDownloader {
 
     private final CloudEventBroker cloudEventBroker;
 
-    private ExecutorService executor = Executors.newFixedThreadPool(1);
+    // Worker threads that download the blocks
+    private final ThreadPoolExecutor executor;
+
+    // Sends releaseImageBlocks for the blocks we've downloaded
+    private final BlockReleaser releaser;
+
+    // Times a failed block download is retried before giving up
+    private final int maxBlockRetries;
+
+    // Number of times each block's download has failed so far
+    private final Map<Integer, Integer> blockFailures = new HashMap<>();
+
+    // Receives timing events, or null
+    private final SessionMetrics metrics;
+
+    // Receives images up to inMemoryImageLimit bytes in memory, or null to deliver
+    // every image as a file
+    private final InMemoryImageListener inMemoryListener;
+    private final int inMemoryImageLimit;
+
+    // Buffers for in-memory images and their parts, if inMemoryListener is set
+    private final BufferPool imageBuffers;
+
+    // Heap buffers used to read responses and copy image data
+    private final BufferPool ioBuffers;
+
+    // Deliver each image as soon as its parts are complete, not in scan order
+    private final boolean outOfOrderDelivery;
+
+    // Told how far delivery has got in scan order, or null
+    private final DeliveryWatermarkListener watermarkListener;
 
     /**
-     * Status of all the blocks we're aware of
+     * Status of the blocks we're aware of, and which one to download next
      */
-    private Map<Integer, BlockState> blockState = new HashMap<Integer, BlockState>();
+    private final BlockScheduler scheduler = new BlockScheduler();
 
-    // Block numbers <= this value have been downloaded, assembled, and delivered
-    // to the application.
+    // Block numbers below this value have been downloaded, assembled and delivered to
+    // the application. This is the ordered delivery watermark.
     int highestBlockCompleted = 1;
 
+    // Images that have been delivered but are above the watermark, because an earlier
+    // image hasn't been. Maps each image's first block to its last.
+    private final Map<Integer, ImageBlockInfo> deliveredImages = new HashMap<>();
+
+    // Set while a thread is assembling and delivering images
+    private boolean delivering;
+
+    // Set by shutdown, and once the last download has been dealt with after that
+    private boolean shuttingDown;
+    private boolean terminated;
+
+    // Waiting for the last download to finish after shutdown
+    private final List<Runnable> shutdownCallbacks = new ArrayList<>();
+
     /**
-     * Number of simultaneous downloads allowed
+     * Decides the number of simultaneous downloads allowed
      */
-    private int windowSize = 3;
+    private final DownloadWindow window;
 
     /**
      * Temporary path for downloaded images before being delivered.
@@ -81,11 +124,25 @@ public class BlockDownloader {
      */
     private int activeDownloadCount = 0;
 
+    /**
+     * Number of downloads whose result hasn't been dealt with yet. activeDownloadCount
+     * drops as soon as a block's data has arrived, so the next download can start; this
+     * drops once the images it completed have been delivered, or the failure handled.
+     */
+    private int unfinishedDownloads = 0;
+
     /**
      * Blocks that we've downloaded but not yet delivered
      */
     Map<Integer, ImageBlockInfo> downloadedBlocks = new HashMap<>();
 
+    /**
+     * Length of each block's image data, once we know it: from the part's Content-Length,
+     * or because it has finished downloading. Tells us where each part goes in its
+     * image's file.
+     */
+    private final Map<Integer, Long> blockLengths = new HashMap<>();
+
     /**
      * Each block is in one of these states.
      */
@@ -100,182 +157,297 @@ public class BlockDownloader {
         completed
     }
 
-    public BlockDownloader(Session session, File tempDir, SessionListener sessionListener, CloudEventBroker cloudEventBroker) {
+    public BlockDownloader(Session session, File tempDir, SessionListener sessionListener, CloudEventBroker cloudEventBroker, BlockDownloaderConfig config) {
         this.session = session;
         this.tempDir = tempDir;
         this.sessionListener = sessionListener;
         this.cloudEventBroker = cloudEventBroker;
+        this.window = new DownloadWindow(config);
+        this.maxBlockRetries = config.maxBlockRetries;
+        this.metrics = session.getMetrics();
+
+        if (config.inMemoryImageLimit > 0 && sessionListener instanceof InMemoryImageListener) {
+            this.inMemoryListener = (InMemoryImageListener)sessionListener;
+            this.inMemoryImageLimit = config.inMemoryImageLimit;
+            this.imageBuffers = new BufferPool(config.inMemoryImageLimit, config.inMemoryBufferCount, true);
+        } else {
+            this.inMemoryListener = null;
+            this.inMemoryImageLimit = 0;
+            this.imageBuffers = null;
+        }
+
+        this.ioBuffers = config.ioBufferPool != null ? config.ioBufferPool : BufferPool.getSharedPool();
+
+        this.outOfOrderDelivery = config.outOfOrderDelivery;
+        this.watermarkListener = sessionListener instanceof DeliveryWatermarkListener ? (DeliveryWatermarkListener)sessionListener : null;
+
+        this.releaser = new BlockReleaser(new BlockReleaser.Sender() {
+            @Override
+            public void releaseBlock(int fromBlock, int toBlock) {
+                BlockDownloader.this.session.releaseBlock(fromBlock, toBlock);
+            }
+        }, config);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BlockDownloader-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        executor = new ThreadPoolExecutor(config.poolSize, config.poolSize,
+                config.keepAliveTime, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(config.queueDepth), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
     }
 
     /**
-     * The scanner has indicated it has these blocks available - add them to the blockStatus
-     * map if we're not already tracking them.
+     * The scanner has indicated it has these blocks available - add them to the scheduler
+     * if we're not already tracking them.
      * @param blockNumbers
-     * @return
      */
-    public void enqueueBlocks(List<Integer> blockNumbers) {
+    public void enqueueBlocks(int[] blockNumbers) {
         synchronized(this) {
             for (int blockNum : blockNumbers) {
-                if (!blockState.containsKey(blockNum)) {
-                    blockState.put(blockNum, BlockState.readyToDownload);
+                if (scheduler.add(blockNum) && metrics != null) {
+                    metrics.blockQueued(blockNum, System.nanoTime());
                 }
             }
 
             // Try to queue up some downloads
-            for (int i=0; i<windowSize; i++) {
-                startDownloadThread();
-            }
+            startDownloads();
         }
+
+        // If the scanner is holding a lot of blocks, give back what we can
+        releaser.scannerHolding(blockNumbers.length);
     }
 
     /**
-     * Kick off a download thread, if there aren't already >windowSize in progress.
+     * Stop accepting new downloads and let the worker threads exit once the downloads
+     * in progress are done.
      */
-    private void startDownloadThread() {
+    void shutdown() {
+        shutdown(null);
+    }
+
+    /**
+     * Stop accepting new downloads. Once the downloads in progress are done and their
+     * images delivered, release everything downloaded and call onShutdown.
+     * @param onShutdown Called once the final releaseImageBlocks has been queued, or null
+     */
+    void shutdown(Runnable onShutdown) {
         synchronized(this) {
-            if (activeDownloadCount >= windowSize) {
-                // Can't start another download right now
-                return;
+            shuttingDown = true;
+            if (onShutdown != null && !terminated) {
+                shutdownCallbacks.add(onShutdown);
+                onShutdown = null;
             }
+        }
 
-            Thread thread = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    downloadThreadEntry();
-                }
-            });
+        executor.shutdown();
+        finishIfDone();
 
-            thread.start();
+        if (onShutdown != null) {
+            // Already finished
+            onShutdown.run();
         }
     }
 
     /**
-     * Start download the next block, which means fire up the download thread if it's
-     * not already running.  If it is, then the block will get downloaded in turn.
+     * A download's result has been dealt with, including delivering any images it
+     * completed.
      */
-    private void downloadThreadEntry() {
-        int blockReady = -1;
+    private void downloadHandled() {
+        synchronized(this) {
+            unfinishedDownloads = unfinishedDownloads - 1;
+        }
+        finishIfDone();
+    }
 
+    /**
+     * If we've been shut down and nothing is downloading or delivering, release what
+     * we've downloaded and call the shutdown callbacks. Does nothing after the first time.
+     */
+    private void finishIfDone() {
+        List<Runnable> callbacks;
         synchronized(this) {
-            if (session.getStopping()) {
+            if (!shuttingDown || terminated || unfinishedDownloads > 0 || delivering) {
                 return;
             }
+            terminated = true;
+            callbacks = new ArrayList<>(shutdownCallbacks);
+            shutdownCallbacks.clear();
+        }
 
-            if (activeDownloadCount >= windowSize) {
-                return;
+        releaser.shutdown();
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Hand blocks to the worker pool, lowest block number first, until the window is
+     * full or there's nothing left to download.
+     */
+    private void startDownloads() {
+        synchronized(this) {
+            while (activeDownloadCount < window.getSize() && !session.getStopping()) {
+                final int blockNum = scheduler.next();
+                if (blockNum == -1) {
+                    // No blocks are ready
+                    return;
+                }
+
+                activeDownloadCount = activeDownloadCount + 1;
+                unfinishedDownloads = unfinishedDownloads + 1;
+
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            downloadBlock(blockNum);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // The queue is full, or we've been shut down. Leave the block
+                    // for the next time a download completes.
+                    scheduler.requeue(blockNum);
+                    activeDownloadCount = activeDownloadCount - 1;
+                    unfinishedDownloads = unfinishedDownloads - 1;
+                    return;
+                }
             }
+        }
+    }
 
-            // Find the lowest block number that's not already downloading
-            Object[] blocks = blockState.keySet().toArray();
-            if (blocks.length == 0) {
-                // Nothing to download
-                return;
+    /**
+     * A download has finished, freeing up a slot in the window. Feed the result to the
+     * window and start the next downloads.
+     * @param blockNum The block we were downloading
+     * @param startTime System.nanoTime() when the download started
+     * @param imageBlockInfo The downloaded block, or null if the download failed
+     */
+    private void downloadFinished(int blockNum, long startTime, ImageBlockInfo imageBlockInfo) {
+        if (metrics != null) {
+            if (imageBlockInfo != null) {
+                metrics.blockCompleted(blockNum, System.nanoTime(), imageBlockInfo.size);
+            } else {
+                metrics.blockFailed(blockNum, System.nanoTime());
             }
-            Arrays.sort(blocks);
+        }
 
-            // Go through the blocks in sorted order looking for one that's readyToDownload
-            for (int bidx=0; bidx<blocks.length; bidx++) {
-                int blockNum = (int)blocks[bidx];
-                if (blockState.get(blockNum) == BlockState.readyToDownload) {
-                    blockReady = blockNum;
-                    break;
-                }
+        synchronized(this) {
+            activeDownloadCount = activeDownloadCount - 1;
+
+            if (imageBlockInfo != null) {
+                blockFailures.remove(blockNum);
+                window.onSuccess(imageBlockInfo.size, System.nanoTime() - startTime);
+            } else {
+                window.onFailure();
             }
 
-            if (blockReady == -1) {
-                // No blocks are ready
-                return;
+            startDownloads();
+        }
+    }
+
+    /**
+     * A download failed. Put the block back in the queue to be downloaded again, or if it
+     * has failed too many times, give up and report the error. The window is shrunk
+     * either way.
+     */
+    private void downloadFailed(int blockNum, long startTime, Exception e) {
+        boolean retry;
+        synchronized(this) {
+            Integer failures = blockFailures.get(blockNum);
+            int attempts = failures == null ? 1 : failures + 1;
+            retry = attempts <= maxBlockRetries && !session.getStopping();
+            if (retry) {
+                blockFailures.put(blockNum, attempts);
+                scheduler.requeue(blockNum);
+            } else {
+                blockFailures.remove(blockNum);
             }
+        }
+
+        downloadFinished(blockNum, startTime, null);
 
-            blockState.put(blockReady, BlockState.downloading);
+        try {
+            if (retry) {
+                logger.warning("Download of block %d failed, retrying: %s", blockNum, e);
+            } else {
+                sessionListener.onConnectionError(session, e);
+            }
+        } catch (RuntimeException listenerFailure) {
+            logger.log(Level.WARNING, "Listener failed handling a connection error", listenerFailure);
+        } finally {
+            downloadHandled();
+        }
+    }
 
-            activeDownloadCount = activeDownloadCount + 1;
+    /**
+     * Download a block. Runs on one of the worker threads.
+     */
+    private void downloadBlock(final int blockNum) {
+        if (session.getStopping()) {
+            synchronized(this) {
+                activeDownloadCount = activeDownloadCount - 1;
+            }
+            downloadHandled();
+            return;
         }
 
-        logger.info(String.format("Starting download of block %s", blockReady));
+        logger.info("Starting download of block %s", blockNum);
 
-        final int blockNum = blockReady;
+        final long startTime = System.nanoTime();
+        if (metrics != null) {
+            metrics.blockStarted(blockNum, startTime);
+        }
 
         try {
-            // Synchronously download this block - we're on a background thread
+            // Download this block. With a blocking transport this runs to completion on
+            // this worker thread; with an asynchronous one it returns once the request is
+            // sent, and the listeners run when the response arrives.
             JSONObject params = new JSONObject();
             params.put("sessionId", session.getSessionId());
-            params.put("imageBlockNum", blockReady);
+            params.put("imageBlockNum", blockNum);
             params.put("withMetadata", "true");
 
             final AsyncResult<InputStream> localListener = new AsyncResult<InputStream>() {
                 @Override
                 public void onResult(InputStream inputStream) {
-                    try {
-                        synchronized(this) {
-                            activeDownloadCount = activeDownloadCount - 1;
-                        }
-
-                        InputStreamDataSource dataSource = new InputStreamDataSource(inputStream, "multipart/mixed");
-                        MimeMultipart multipart = new MimeMultipart(dataSource);
-
-                        int count = multipart.getCount();
-
-                        MimeBodyPart contentPart = null;
-
-                        JSONObject results = null;
-                        for (int part = 0; part < count; part++) {
-                            BodyPart bodyPart = multipart.getBodyPart(part);
-
-                            if (bodyPart.getContentType().startsWith("application/json")) {
-                                Object partObj = bodyPart.getContent();
-                                if (partObj instanceof InputStream) {
-                                    JSONObject response = StreamUtils.inputStreamToJSONObject((InputStream)partObj);
-                                    results = response.getJSONObject("results");
-                                }
-                            }
-
-                            if (bodyPart.getContentType().startsWith("application/pdf")) {
-                                contentPart = (MimeBodyPart)bodyPart;
-                            }
-                        }
+                    if (metrics != null) {
+                        metrics.blockFirstByte(blockNum, System.nanoTime());
+                    }
 
-                        if (contentPart == null) {
-                            logger.severe("requestImageBlock did not deliver an application/pdf part");
-                            return;
-                        }
+                    ImageBlockInfo imageBlockInfo;
+                    ByteBuffer buffer = ioBuffers.acquire();
+                    try {
+                        imageBlockInfo = readMultipartBlock(inputStream, blockNum, buffer.array());
+                    } catch (IOException | RuntimeException e) {
+                        // Includes bad JSON or metadata, as well as I/O errors
+                        downloadFailed(blockNum, startTime, e);
+                        return;
+                    } finally {
+                        ioBuffers.release(buffer);
+                    }
 
-                        // Save the content part, using an intermediate filename geneated from the metadata
-                        JSONObject metadata = results.getJSONObject("metadata");
-                        ImageBlockInfo imageBlockInfo = createImageBlockInfo(metadata, blockNum);
-
-                        // Save the content part to disk
-                        String partName = imageBlockInfo.partFileName();
-                        File tempFile = new File(tempDir, partName);
-
-                        // The BodyPart.saveFile method includes the crlf at the end of the part (which
-                        // extends past Content-Length).  To work around this, truncate the file
-                        // to the value of the Content-Length header.
-                        String[] contentLengthHeader = contentPart.getHeader("Content-Length");
-                        int bodyLength = Integer.parseInt(contentLengthHeader[0]);
-                        contentPart.saveFile(tempFile);
-                        FileChannel chan = new FileOutputStream(tempFile, true).getChannel();
-                        chan.truncate(bodyLength);
-                        chan.close();
-
-                        completedImageBlockDownload(imageBlockInfo);
-                    } catch (MessagingException e) {
-                        // The MIME body was unusable
-                        sessionListener.onConnectionError(session, e);
-                    } catch (IOException e) {
-                        sessionListener.onConnectionError(session, e);
-                    } catch (JSONException e) {
-                        sessionListener.onConnectionError(session, e);
+                    if (imageBlockInfo == null) {
+                        downloadFailed(blockNum, startTime, new IOException("readImageBlock response for block " + blockNum + " was incomplete"));
+                        return;
                     }
+
+                    downloadFinished(blockNum, startTime, imageBlockInfo);
+                    completedImageBlockDownload(imageBlockInfo);
                 }
 
                 @Override
                 public void onError(Exception e) {
                     // We failed getting this piece
-                    synchronized(this) {
-                        activeDownloadCount = activeDownloadCount - 1;
-                    }
-                    sessionListener.onConnectionError(session, e);
+                    downloadFailed(blockNum, startTime, e);
                 }
             };
 
@@ -284,60 +456,71 @@ public class BlockDownloader {
             AsyncResult<JSONObject> cloudListener = new AsyncResult<JSONObject>() {
                 @Override
                 public void onResult(JSONObject result) {
-                    final JSONObject results = result.getJSONObject("results");
-                    final String blockId = results.getString("imageBlockUrl");
-                    logger.info("Requesting download of imageBlockId " + blockId);
+                    final JSONObject results;
+                    final String blockId;
+                    CloudBlockRequest cloudBlockRequest;
+                    try {
+                        results = result.getJSONObject("results");
+                        blockId = results.getString("imageBlockUrl");
+                        logger.info("Requesting download of imageBlockId %s", blockId);
+
+                        // We have the metadata. Request the block data from the cloud.
+                        cloudBlockRequest = session.createCloudBlockRequest(blockId);
+                    } catch (RuntimeException e) {
+                        downloadFailed(blockNum, startTime, e);
+                        return;
+                    }
 
-                    // We have the metadata. Request the block data from the cloud.
-                    CloudBlockRequest cloudBlockRequest = session.createCloudBlockRequest(blockId);
                     cloudBlockRequest.listener = new AsyncResult<InputStream>() {
                         @Override
                         public void onResult(InputStream imageStream) {
-                            logger.info("Received data for block num " + blockNum + " id " + blockId);
-                            synchronized(this) {
-                                activeDownloadCount = activeDownloadCount - 1;
+                            if (metrics != null) {
+                                metrics.blockFirstByte(blockNum, System.nanoTime());
                             }
 
-                            JSONObject metadata = results.getJSONObject("metadata");
-                            ImageBlockInfo imageBlockInfo = createImageBlockInfo(metadata, blockNum);
-                            String partName = imageBlockInfo.partFileName();
-                            File tempFile = new File(tempDir, partName);
+                            logger.info("Received data for block num %s id %s", blockNum, blockId);
+
+                            ImageBlockInfo imageBlockInfo;
                             try {
-                                // The source stream is raw binary data
-                                ByteArrayOutputStream bufferStream = new ByteArrayOutputStream();
-                                byte[] buffer = new byte[64*1024];
-                                int len = 0;
-                                while ((len = imageStream.read(buffer)) != -1) {
-                                    bufferStream.write(buffer, 0, len);
+                                JSONObject metadata = results.getJSONObject("metadata");
+                                imageBlockInfo = createImageBlockInfo(metadata, blockNum);
+
+                                // The source stream is raw binary data - stream it to disk
+                                OutputStream outputStream = openImageData(imageBlockInfo, -1);
+                                ByteBuffer buffer = ioBuffers.acquire();
+                                boolean copied = false;
+                                try {
+                                    imageBlockInfo.size = StreamUtils.copy(imageStream, outputStream, buffer.array());
+                                    copied = true;
+                                } finally {
+                                    ioBuffers.release(buffer);
+                                    outputStream.close();
+                                    if (!copied) {
+                                        discardImageData(imageBlockInfo);
+                                    }
                                 }
-
-                                FileOutputStream outputStream = new FileOutputStream(tempFile);
-                                outputStream.write(bufferStream.toByteArray());
-                                outputStream.close();
-
-                                completedImageBlockDownload(imageBlockInfo);
-                            } catch (IOException e) {
-                                sessionListener.onConnectionError(session, e);
+                                imageDataWritten(imageBlockInfo);
+                            } catch (IOException | RuntimeException e) {
+                                // Includes bad metadata, as well as I/O errors
+                                downloadFailed(blockNum, startTime, e);
+                                return;
                             }
+
+                            downloadFinished(blockNum, startTime, imageBlockInfo);
+                            completedImageBlockDownload(imageBlockInfo);
                         }
 
                         @Override
                         public void onError(Exception e) {
-                            synchronized(this) {
-                                activeDownloadCount = activeDownloadCount - 1;
-                            }
-                            sessionListener.onConnectionError(session, e);
+                            downloadFailed(blockNum, startTime, e);
                         }
                     };
-                    cloudBlockRequest.run();
+                    cloudBlockRequest.send();
                 }
 
                 @Override
                 public void onError(Exception e) {
-                    synchronized(this) {
-                        activeDownloadCount = activeDownloadCount - 1;
-                    }
-                    sessionListener.onConnectionError(session, e);
+                    downloadFailed(blockNum, startTime, e);
                 }
             };
 
@@ -347,16 +530,175 @@ public class BlockDownloader {
                 HttpJsonRequest request = session.createJsonRequest("readImageBlock", params);
                 request.readTimeout = 120000;
                 request.listener = cloudListener;
-                executor.submit(request);
+                request.send();
             } else {
                 // Local block request
                 HttpBlockRequest request = session.createBlockRequest(params);
                 request.listener = localListener;
-                request.run();
+                request.send();
             }
 
         } catch (Exception e) {
+            // The listeners deal with their own failures, so the request wasn't sent.
+            // Give the slot back, and retry or report it like any other failure.
             logger.severe(e.toString());
+            downloadFailed(blockNum, startTime, e);
+        }
+    }
+
+    /**
+     * Read a readImageBlock response, saving the image data to the block's part file.
+     * Returns null if the response didn't have the parts we expected.
+     * @param buffer Buffer to read the response through
+     */
+    private ImageBlockInfo readMultipartBlock(InputStream inputStream, int blockNum, byte[] buffer) throws IOException, JSONException {
+        MultipartReader multipart = new MultipartReader(inputStream, null, buffer);
+
+        JSONObject results = null;
+        ImageBlockInfo imageBlockInfo = null;
+        long size = 0;
+
+        // Set if the image data arrives before the metadata that names its file
+        File unnamedFile = null;
+
+        boolean complete = false;
+        try {
+            while (multipart.nextPart()) {
+                String contentType = multipart.getContentType();
+
+                if (contentType.startsWith("application/json")) {
+                    JSONObject response = JsonStreamParser.parseObject(new ByteArrayInputStream(multipart.readBody()));
+                    results = response.getJSONObject("results");
+                } else if (contentType.startsWith("application/pdf")) {
+                    // Stream the content part straight to disk, into its place in the image's
+                    // file if we can, otherwise to a part file named from the metadata
+                    OutputStream out;
+                    if (results != null) {
+                        imageBlockInfo = createImageBlockInfo(results.getJSONObject("metadata"), blockNum);
+                        out = openImageData(imageBlockInfo, multipart.getContentLength());
+                    } else {
+                        unnamedFile = new File(tempDir, blockNum + ".download");
+                        out = new FileOutputStream(unnamedFile);
+                    }
+
+                    try {
+                        size = multipart.copyBody(out);
+                    } finally {
+                        out.close();
+                    }
+                }
+            }
+
+            if (imageBlockInfo == null && unnamedFile == null) {
+                logger.severe("requestImageBlock did not deliver an application/pdf part");
+                return null;
+            }
+
+            if (results == null) {
+                logger.severe("requestImageBlock did not deliver an application/json part");
+                return null;
+            }
+
+            if (imageBlockInfo == null) {
+                // Now that we have the metadata, give the part its proper name
+                imageBlockInfo = createImageBlockInfo(results.getJSONObject("metadata"), blockNum);
+                unnamedFile.renameTo(new File(tempDir, imageBlockInfo.partFileName()));
+                unnamedFile = null;
+            }
+
+            imageBlockInfo.size = size;
+            if (imageBlockInfo.data != null) {
+                imageBlockInfo.data.flip();
+            }
+            imageDataWritten(imageBlockInfo);
+            complete = true;
+            return imageBlockInfo;
+        } finally {
+            if (!complete) {
+                // Don't leave a partly written block behind in tempDir
+                if (unnamedFile != null) {
+                    unnamedFile.delete();
+                }
+                if (imageBlockInfo != null) {
+                    discardImageData(imageBlockInfo);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the file or buffer to write a block's image data to.
+     *
+     * When in-memory delivery is on, a part is kept in memory if the scanner told us its
+     * length and, as far as we know yet, the image fits within inMemoryImageLimit.
+     *
+     * Otherwise it goes to disk. Each image is assembled in its first part's part file. A part is written straight
+     * into that file, at its final offset, if we know the length of every part before it.
+     * Otherwise it goes to a part file of its own, and is copied into place when the
+     * image is assembled.
+     * @param length The length of the image data, or -1 if the scanner didn't say
+     */
+    private OutputStream openImageData(ImageBlockInfo imageBlockInfo, long length) throws IOException {
+        long offset;
+        synchronized(this) {
+            if (length >= 0) {
+                Long previousLength = blockLengths.get(imageBlockInfo.blockNum);
+                if (previousLength != null && previousLength != length) {
+                    // We're downloading this block again, and the parts after it may
+                    // already be written where the old length said they go
+                    throw new IOException("Image block " + imageBlockInfo.blockNum + " changed length");
+                }
+                blockLengths.put(imageBlockInfo.blockNum, length);
+            }
+
+            offset = imageOffset(imageBlockInfo);
+        }
+
+        if (inMemoryListener != null && length >= 0 && Math.max(offset, 0) + length <= inMemoryImageLimit) {
+            imageBlockInfo.data = imageBuffers.acquire();
+            return new ByteBufferOutputStream(imageBlockInfo.data);
+        }
+
+        if (offset < 0) {
+            return new FileOutputStream(new File(tempDir, imageBlockInfo.partFileName()));
+        }
+
+        imageBlockInfo.inPlace = true;
+        return new PositionalOutputStream(new File(tempDir, imageBlockInfo.imageFileName()), offset);
+    }
+
+    /**
+     * Where a block's image data starts in its image's file, or -1 if we don't know the
+     * length of every part before it yet. Call holding the monitor.
+     */
+    private long imageOffset(ImageBlockInfo imageBlockInfo) {
+        long offset = 0;
+        for (int blockNum = imageBlockInfo.firstBlockNum(); blockNum < imageBlockInfo.blockNum; blockNum++) {
+            Long length = blockLengths.get(blockNum);
+            if (length == null) {
+                return -1;
+            }
+            offset += length;
+        }
+        return offset;
+    }
+
+    /**
+     * A block's image data has all been written, so now we know its length.
+     */
+    private void imageDataWritten(ImageBlockInfo imageBlockInfo) {
+        synchronized(this) {
+            blockLengths.put(imageBlockInfo.blockNum, imageBlockInfo.size);
+        }
+    }
+
+    /**
+     * Give a part's in-memory image data back to the pool, if it has any.
+     */
+    private void releaseImageData(ImageBlockInfo imageBlockInfo) {
+        if (imageBlockInfo.data != null) {
+            imageBuffers.release(imageBlockInfo.data);
+            imageBlockInfo.data = null;
         }
     }
 
@@ -374,93 +716,349 @@ public class BlockDownloader {
     }
 
     private void completedImageBlockDownload(ImageBlockInfo imageBlockInfo) {
-        // Add the ImageBlockInfo to our map of lists of parts.
-        synchronized(this) {
-            blockState.put(imageBlockInfo.blockNum, BlockState.waitingForMoreParts);
-            downloadedBlocks.put(imageBlockInfo.blockNum, imageBlockInfo);
-        }
+        try {
+            // Add the ImageBlockInfo to our map of lists of parts.
+            synchronized(this) {
+                scheduler.setState(imageBlockInfo.blockNum, BlockState.waitingForMoreParts);
+                downloadedBlocks.put(imageBlockInfo.blockNum, imageBlockInfo);
+            }
 
-        logger.fine(String.format("Finished downloading block %d", imageBlockInfo.blockNum));
+            logger.fine("Finished downloading block %d", imageBlockInfo.blockNum);
 
-        deliverCompletedParts();
+            // We have the block's data, so the scanner can have its buffer back whatever
+            // happens when it's delivered
+            releaser.add(imageBlockInfo.blockNum);
 
-        // On to the next part
-        startDownloadThread();
+            deliverCompletedParts();
 
-        session.releaseBlock(imageBlockInfo.blockNum, imageBlockInfo.blockNum);
+            boolean idle;
+            synchronized(this) {
+                idle = activeDownloadCount == 0 && !scheduler.hasReadyBlocks();
+            }
 
+            if (idle) {
+                // Nothing else is coming for now, so don't hold on to the releases
+                releaser.flush();
+            }
+        } finally {
+            downloadHandled();
+        }
     }
+
     /**
-     * If we have all the parts for the next image to deliver, deliver it to the application.
+     * Deliver every image we have all the parts for. Normally that's in order, and a
+     * block arriving out of order can complete several images at once. With
+     * outOfOrderDelivery, each image goes as soon as its own parts are here.
+     *
+     * Only one thread delivers at a time, so the application gets one image at a time.
+     * If another thread is already delivering, this returns straight away and that
+     * thread delivers whatever is now complete. Parts are assembled, and the listener
+     * called, without holding the BlockDownloader monitor, so other downloads can be
+     * started and finished in the meantime.
      */
-    private void deliverCompletedParts() {
-        int partsToAssemble = 0;
+    void deliverCompletedParts() {
+        synchronized(this) {
+            if (delivering) {
+                return;
+            }
+            delivering = true;
+        }
+
+        boolean drained = false;
+        try {
+            List<ImageBlockInfo> parts;
+            while ((parts = takeNextImage()) != null) {
+                try {
+                    deliverImage(parts);
+                } finally {
+                    imageDelivered(parts);
+                }
+            }
+            // takeNextImage cleared delivering
+            drained = true;
+        } finally {
+            if (!drained) {
+                // deliverImage catches the listener's exceptions, so this is an Error.
+                // Let the next completed download carry on delivering.
+                synchronized(this) {
+                    delivering = false;
+                }
+            }
+        }
+    }
 
+    /**
+     * If we have all the parts for an image to deliver, take them, in order. Otherwise
+     * clear delivering and return null.
+     *
+     * In order, that's the image at the watermark. Out of order, it's the earliest
+     * image that's complete.
+     */
+    private List<ImageBlockInfo> takeNextImage() {
         synchronized(this) {
-            // See if we have an unbroken sequence of blocks ending in a block that has
-            // moreParts = lastPart
-            int nextBlock = 0;
-
-            for (int blockNum = highestBlockCompleted;; blockNum++) {
-                ImageBlockInfo ibi = downloadedBlocks.get(blockNum);
-                if (ibi == null) {
-                    // No block with this index
-                    return;
+            List<ImageBlockInfo> parts = null;
+            if (!outOfOrderDelivery) {
+                parts = completeImageAt(highestBlockCompleted);
+            } else {
+                for (ImageBlockInfo ibi : downloadedBlocks.values()) {
+                    if (ibi.imagePart != 1 || (parts != null && parts.get(0).blockNum < ibi.blockNum)) {
+                        continue;
+                    }
+                    List<ImageBlockInfo> image = completeImageAt(ibi.blockNum);
+                    if (image != null) {
+                        parts = image;
+                    }
                 }
+            }
 
-                partsToAssemble++;
+            if (parts == null) {
+                delivering = false;
+                return null;
+            }
 
-                if (ibi.moreParts != ImageBlockInfo.MoreParts.morePartsPending) {
-                    // This is a last part
-                    nextBlock = blockNum + 1;
-                    break;
-                }
+            for (ImageBlockInfo ibi : parts) {
+                downloadedBlocks.remove(ibi.blockNum);
+                blockLengths.remove(ibi.blockNum);
+            }
+            return parts;
+        }
+    }
+
+    /**
+     * If we have an unbroken sequence of blocks starting at firstBlockNum and ending in
+     * a block that has moreParts = lastPart, return them. Otherwise return null.
+     */
+    private List<ImageBlockInfo> completeImageAt(int firstBlockNum) {
+        List<ImageBlockInfo> parts = new ArrayList<>();
+
+        for (int blockNum = firstBlockNum;; blockNum++) {
+            ImageBlockInfo ibi = downloadedBlocks.get(blockNum);
+            if (ibi == null) {
+                // No block with this index
+                return null;
+            }
+
+            parts.add(ibi);
+
+            if (ibi.moreParts != ImageBlockInfo.MoreParts.morePartsPending) {
+                // This is a last part
+                return parts;
             }
+        }
+    }
+
+    /**
+     * An image has been delivered, or its delivery failed. Move the watermark past it,
+     * and past any later images that were delivered before it, and tell the
+     * DeliveryWatermarkListener.
+     */
+    private void imageDelivered(List<ImageBlockInfo> parts) {
+        ImageBlockInfo deliveredThrough = null;
+        synchronized(this) {
+            deliveredImages.put(parts.get(0).blockNum, parts.get(parts.size() - 1));
+
+            ImageBlockInfo lastPart;
+            while ((lastPart = deliveredImages.remove(highestBlockCompleted)) != null) {
+                deliveredThrough = lastPart;
+                highestBlockCompleted = lastPart.blockNum + 1;
+            }
+
+            if (deliveredThrough != null) {
+                scheduler.evictBelow(highestBlockCompleted);
+            }
+        }
+
+        if (deliveredThrough != null && watermarkListener != null) {
+            watermarkListener.onImagesDeliveredThrough(session, deliveredThrough.sheetNumber, deliveredThrough.imageNumber);
+        }
+    }
 
-            // Assemble parts from highestBlockDownloaded to nextBlock
-            ImageBlockInfo firstBlockInfo = downloadedBlocks.get(highestBlockCompleted);
+    /**
+     * Assemble an image's parts into one file and deliver it to the application.
+     * @param parts The image's blocks, in order
+     */
+    private void deliverImage(List<ImageBlockInfo> parts) {
+        ImageBlockInfo firstBlockInfo = parts.get(0);
+
+        if (logger.isLoggable(Level.FINE)) {
             File outFile = new File(tempDir, firstBlockInfo.eventualFileName());
+            logger.fine("Assembling parts from %s to %s into %s", firstBlockInfo.blockNum, firstBlockInfo.blockNum + parts.size(), outFile);
+        }
 
-            logger.log(Level.FINE, String.format("Assembling parts from %s to %s into %s", highestBlockCompleted, nextBlock, outFile.getAbsolutePath()));
+        long assemblyStart = System.nanoTime();
 
-            File firstBlockFile = new File(tempDir, firstBlockInfo.partFileName());
-            if (partsToAssemble > 1) {
-                // Append all subsequent blocks to the first one
-                try {
-                    OutputStream out = new FileOutputStream(firstBlockFile, true);
+        JSONObject metadata = firstBlockInfo.metadata;
 
-                    byte[] buf = new byte[65536];
+        ByteBuffer image = assembleInMemory(parts);
+        if (image != null) {
+            long listenerStart = System.nanoTime();
+            if (metrics != null) {
+                metrics.imageAssembled(parts.size(), listenerStart - assemblyStart);
+            }
 
-                    for (int idx = highestBlockCompleted+ 1; idx < nextBlock; idx++) {
-                        ImageBlockInfo block = downloadedBlocks.get(idx);
-                        File inFile = new File(tempDir, block.partFileName());
-                        InputStream in = new FileInputStream(inFile);
-                        int b = 0;
-                        while ((b = in.read(buf)) >= 0) {
-                            out.write(buf, 0, b);
-                        }
+            try {
+                inMemoryListener.onImageReceived(session, image, metadata);
+            } catch (RuntimeException e) {
+                // Carry on with the images after this one
+                logger.log(Level.WARNING, "Listener failed handling an image", e);
+            } finally {
+                imageBuffers.release(image);
+            }
 
-                        in.close();
-                        inFile.delete();
-                    }
-                    out.close();
-                } catch (FileNotFoundException e) {
-                    logger.severe(e.toString());
-                } catch (IOException e) {
-                    logger.severe(e.toString());
+            if (metrics != null) {
+                metrics.imageDelivered(System.nanoTime() - listenerStart);
+            }
+            return;
+        }
+
+        File firstBlockFile = new File(tempDir, firstBlockInfo.partFileName());
+        if (parts.size() > 1) {
+            // Copy any parts that weren't written in place into the first one's file
+            try {
+                assembleParts(firstBlockFile, parts);
+            } catch (IOException e) {
+                // Don't deliver a partly assembled image
+                logger.severe(e.toString());
+                discardParts(firstBlockFile, parts);
+                if (sessionListener != null) {
+                    sessionListener.onConnectionError(session, e);
                 }
+                return;
             }
+        }
 
-            JSONObject metadata = firstBlockInfo.metadata;
+        if (sessionListener != null) {
+            File finalFile = new File(tempDir, firstBlockInfo.eventualFileName());
+            firstBlockFile.renameTo(finalFile);
+
+            long listenerStart = System.nanoTime();
+            if (metrics != null) {
+                metrics.imageAssembled(parts.size(), listenerStart - assemblyStart);
+            }
 
-            if (sessionListener != null) {
-                File finalFile = new File(tempDir, firstBlockInfo.eventualFileName());
-                firstBlockFile.renameTo(finalFile);
+            try {
                 sessionListener.onImageReceived(session, finalFile, metadata);
+            } catch (RuntimeException e) {
+                // Carry on with the images after this one
+                logger.log(Level.WARNING, "Listener failed handling an image", e);
+            } finally {
                 finalFile.delete();
             }
 
-            highestBlockCompleted = nextBlock;
+            if (metrics != null) {
+                metrics.imageDelivered(System.nanoTime() - listenerStart);
+            }
+        }
+    }
+
+    /**
+     * Throw away an image that couldn't be assembled: its file, any parts still in
+     * their own files, and any still in memory.
+     */
+    private void discardParts(File firstBlockFile, List<ImageBlockInfo> parts) {
+        firstBlockFile.delete();
+        for (ImageBlockInfo block : parts) {
+            discardImageData(block);
+        }
+    }
+
+    /**
+     * Throw away a block's image data: its buffer, or its part file. Data written in
+     * place is part of its image's file, and is overwritten if the block is downloaded
+     * again.
+     */
+    private void discardImageData(ImageBlockInfo imageBlockInfo) {
+        if (imageBlockInfo.data != null) {
+            releaseImageData(imageBlockInfo);
+        } else if (!imageBlockInfo.inPlace) {
+            new File(tempDir, imageBlockInfo.partFileName()).delete();
+        }
+    }
+
+    /**
+     * If every part of the image is in memory, and it's no bigger than
+     * inMemoryImageLimit, return the whole image in one buffer, ready to read.
+     * Otherwise return null, and the image is delivered as a file.
+     */
+    private ByteBuffer assembleInMemory(List<ImageBlockInfo> parts) {
+        if (inMemoryListener == null) {
+            return null;
+        }
+
+        long size = 0;
+        for (ImageBlockInfo block : parts) {
+            if (block.data == null) {
+                return null;
+            }
+            size += block.data.remaining();
+        }
+
+        if (size > inMemoryImageLimit) {
+            return null;
+        }
+
+        ImageBlockInfo firstBlockInfo = parts.get(0);
+        if (parts.size() == 1) {
+            ByteBuffer image = firstBlockInfo.data;
+            firstBlockInfo.data = null;
+            return image;
+        }
+
+        ByteBuffer image = imageBuffers.acquire();
+        for (ImageBlockInfo block : parts) {
+            image.put(block.data);
+            releaseImageData(block);
+        }
+        image.flip();
+        return image;
+    }
+
+    /**
+     * Write the parts that weren't written in place into their positions in
+     * firstBlockFile, and delete their part files. Parts on disk are copied from channel
+     * to channel, so they don't pass through the Java heap, and the operating system
+     * can do the copy itself where it supports that.
+     */
+    private void assembleParts(File firstBlockFile, List<ImageBlockInfo> parts) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(firstBlockFile, "rw");
+        try {
+            FileChannel outChannel = out.getChannel();
+            long position = 0;
+
+            for (int idx = 0; idx < parts.size(); idx++) {
+                ImageBlockInfo block = parts.get(idx);
+                if (block.data != null) {
+                    // Kept in memory, but the image turned out too big to deliver that way
+                    long written = 0;
+                    while (block.data.hasRemaining()) {
+                        written += outChannel.write(block.data, position + written);
+                    }
+                    releaseImageData(block);
+                } else if (idx > 0 && !block.inPlace) {
+                    File inFile = new File(tempDir, block.partFileName());
+                    FileInputStream in = new FileInputStream(inFile);
+                    try {
+                        FileChannel inChannel = in.getChannel();
+                        long size = inChannel.size();
+                        long copied = 0;
+
+                        // transferTo can copy less than it was asked to
+                        outChannel.position(position);
+                        while (copied < size) {
+                            copied += inChannel.transferTo(copied, size - copied, outChannel);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    inFile.delete();
+                }
+                position += block.size;
+            }
+
+            // Drop anything left past the end by an earlier attempt at a block
+            outChannel.truncate(position);
+        } finally {
+            out.close();
         }
     }
 }
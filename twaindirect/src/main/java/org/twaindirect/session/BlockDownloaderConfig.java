@@ -0,0 +1,58 @@
+package org.twaindirect.session;
+
+/**
+ * Tuning parameters for BlockDownloader. Set on the Session with setBlockDownloaderConfig
+ * before calling startCapturing.
+ */
+public class BlockDownloaderConfig {
+    // Number of worker threads that download image blocks. Should be at least maxWindowSize.
+    public int poolSize = 8;
+
+    // Maximum number of block downloads waiting for a free worker thread
+    public int queueDepth = 16;
+
+    // Number of simultaneous downloads to start with
+    public int windowSize = 3;
+
+    // When true, the number of simultaneous downloads is tuned between minWindowSize and
+    // maxWindowSize based on the observed throughput. When false, windowSize is used as is.
+    public boolean adaptiveWindow = true;
+
+    // Bounds for the adaptive window
+    public int minWindowSize = 1;
+    public int maxWindowSize = 8;
+
+    // Downloaded blocks are released to the scanner in batches. A batch is sent when it
+    // reaches releaseBatchSize blocks, or when its oldest block has waited releaseDelay
+    // milliseconds, whichever comes first.
+    public int releaseBatchSize = 8;
+    public int releaseDelay = 250;
+
+    // Release immediately when the scanner reports holding at least this many blocks,
+    // so it doesn't run out of buffer space
+    public int releaseHighWater = 16;
+
+    // Times a failed block download is retried, with a smaller window, before the error
+    // is reported to SessionListener.onConnectionError
+    public int maxBlockRetries = 3;
+
+    // Idle worker threads exit after this many milliseconds
+    public int keepAliveTime = 30000;
+
+    // If the SessionListener also implements InMemoryImageListener, images up to this
+    // many bytes are delivered to it in memory instead of through a file. 0 turns this off.
+    public int inMemoryImageLimit = 0;
+
+    // Number of inMemoryImageLimit sized direct buffers kept for reuse
+    public int inMemoryBufferCount = 8;
+
+    // Heap buffers used to read and copy image data, or null to use
+    // BufferPool.getSharedPool(). Buffers should be at least a few KB.
+    public BufferPool ioBufferPool;
+
+    // When true, each image is delivered as soon as all of its own parts have arrived,
+    // instead of waiting for every earlier image, so one slow block doesn't hold up the
+    // pages after it. Images can then arrive out of scan order: use the address in
+    // each image's metadata, and DeliveryWatermarkListener, to put them back in order.
+    public boolean outOfOrderDelivery = false;
+}
@@ -0,0 +1,136 @@
+package org.twaindirect.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches up releaseImageBlocks commands.
+ *
+ * Rather than sending one releaseImageBlocks per downloaded block, BlockDownloader adds
+ * block numbers here, and we send them as contiguous ranges (imageBlockNum through
+ * lastImageBlockNum) once enough have accumulated, once the oldest has been waiting
+ * for releaseDelay, once the scanner reports holding releaseHighWater blocks, or when
+ * flush() is called.
+ */
+class BlockReleaser {
+    // Interface used to send the release command, so it can be supplied by Session
+    interface Sender {
+        void releaseBlock(int fromBlock, int toBlock);
+    }
+
+    private final Sender sender;
+    private final int batchSize;
+    private final int delay;
+    private final int highWater;
+
+    // Block numbers waiting to be released
+    private final TreeSet<Integer> pending = new TreeSet<>();
+
+    private final ScheduledExecutorService timer;
+
+    // Pending timed flush, if any
+    private ScheduledFuture<?> scheduledFlush;
+
+    BlockReleaser(Sender sender, BlockDownloaderConfig config) {
+        this.sender = sender;
+        this.batchSize = Math.max(1, config.releaseBatchSize);
+        this.delay = config.releaseDelay;
+        this.highWater = config.releaseHighWater;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BlockReleaser");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setKeepAliveTime(config.keepAliveTime, TimeUnit.MILLISECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        this.timer = executor;
+    }
+
+    /**
+     * Queue a block to be released.
+     */
+    void add(int blockNum) {
+        synchronized(this) {
+            pending.add(blockNum);
+
+            if (pending.size() < batchSize && delay > 0) {
+                if (scheduledFlush == null) {
+                    scheduledFlush = timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+
+        flush();
+    }
+
+    /**
+     * The scanner reported holding this many blocks. If that's at least releaseHighWater,
+     * release what we can now, so it doesn't run out of buffer space.
+     */
+    void scannerHolding(int blockCount) {
+        if (blockCount >= highWater) {
+            flush();
+        }
+    }
+
+    /**
+     * Release all the pending blocks now.
+     */
+    void flush() {
+        List<int[]> ranges;
+        synchronized(this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+
+            ranges = coalesce(pending);
+            pending.clear();
+        }
+
+        for (int[] range : ranges) {
+            sender.releaseBlock(range[0], range[1]);
+        }
+    }
+
+    /**
+     * Release anything pending and stop the timer.
+     */
+    void shutdown() {
+        flush();
+        timer.shutdown();
+    }
+
+    /**
+     * Merge sorted block numbers into contiguous {from, to} ranges.
+     */
+    static List<int[]> coalesce(TreeSet<Integer> blocks) {
+        List<int[]> ranges = new ArrayList<>();
+        int[] range = null;
+        for (int blockNum : blocks) {
+            if (range != null && blockNum == range[1] + 1) {
+                range[1] = blockNum;
+            } else {
+                range = new int[] { blockNum, blockNum };
+                ranges.add(range);
+            }
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,99 @@
+package org.twaindirect.session;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Tracks the state of the image blocks BlockDownloader knows about, and picks the next
+ * block to download.
+ *
+ * Blocks that are ready to download are kept in a min-heap, so the lowest numbered block
+ * is found in O(log n). Once blocks have been delivered to the application they are
+ * evicted, so we only hold state for blocks that are still in flight.
+ *
+ * Not thread safe - used with the BlockDownloader lock held.
+ */
+class BlockScheduler {
+    // Block numbers that are readyToDownload
+    private final PriorityQueue<Integer> readyBlocks = new PriorityQueue<>();
+
+    // State of every block we're tracking
+    private final Map<Integer, BlockDownloader.BlockState> blockState = new HashMap<>();
+
+    // Blocks below this number have been delivered and are no longer tracked
+    private int lowestTrackedBlock = 1;
+
+    /**
+     * Start tracking a block the scanner says is available.
+     * @return false if the block is already known, or has already been delivered
+     */
+    boolean add(int blockNum) {
+        if (blockNum < lowestTrackedBlock || blockState.containsKey(blockNum)) {
+            return false;
+        }
+
+        blockState.put(blockNum, BlockDownloader.BlockState.readyToDownload);
+        readyBlocks.add(blockNum);
+        return true;
+    }
+
+    /**
+     * Take the lowest numbered block that's ready to download, and mark it as downloading.
+     * @return The block number, or -1 if no blocks are ready
+     */
+    int next() {
+        Integer blockNum = readyBlocks.poll();
+        if (blockNum == null) {
+            return -1;
+        }
+
+        blockState.put(blockNum, BlockDownloader.BlockState.downloading);
+        return blockNum;
+    }
+
+    /**
+     * Put a block taken with next() back in the ready queue.
+     */
+    void requeue(int blockNum) {
+        blockState.put(blockNum, BlockDownloader.BlockState.readyToDownload);
+        readyBlocks.add(blockNum);
+    }
+
+    /**
+     * Update the state of a block that's been downloaded.
+     */
+    void setState(int blockNum, BlockDownloader.BlockState state) {
+        if (blockNum >= lowestTrackedBlock) {
+            blockState.put(blockNum, state);
+        }
+    }
+
+    BlockDownloader.BlockState getState(int blockNum) {
+        return blockState.get(blockNum);
+    }
+
+    /**
+     * Forget about blocks below blockNum, which have been delivered.
+     */
+    void evictBelow(int blockNum) {
+        for (int idx = lowestTrackedBlock; idx < blockNum; idx++) {
+            blockState.remove(idx);
+        }
+        lowestTrackedBlock = Math.max(lowestTrackedBlock, blockNum);
+    }
+
+    /**
+     * Are there blocks ready to download?
+     */
+    boolean hasReadyBlocks() {
+        return !readyBlocks.isEmpty();
+    }
+
+    /**
+     * Number of blocks we're tracking.
+     */
+    int size() {
+        return blockState.size();
+    }
+}
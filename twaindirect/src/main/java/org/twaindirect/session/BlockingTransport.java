@@ -0,0 +1,136 @@
+package org.twaindirect.session;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGetHC4;
+import org.apache.http.client.methods.HttpPostHC4;
+import org.apache.http.client.methods.HttpRequestBaseHC4;
+import org.apache.http.entity.ByteArrayEntityHC4;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtilsHC4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * ScannerTransport that sends each request with a pooled HttpClient on the calling
+ * thread, and calls back before send returns.
+ */
+public class BlockingTransport implements ScannerTransport {
+    private static final LazyLog logger = LazyLog.getLog(BlockingTransport.class);
+
+    private final HttpClientPool httpClientPool;
+
+    /**
+     * @param httpClientPool Source of the HttpClients, or null to use the shared pool
+     */
+    public BlockingTransport(HttpClientPool httpClientPool) {
+        this.httpClientPool = httpClientPool != null ? httpClientPool : HttpClientPool.getSharedPool();
+    }
+
+    public HttpClientPool getHttpClientPool() {
+        return httpClientPool;
+    }
+
+    @Override
+    public void send(TransportRequest request, AsyncResult<TransportResponse> callback) {
+        Response response;
+        try {
+            // Get a (possibly already connected) client for this host
+            CloseableHttpClient httpClient = httpClientPool.getHttpClient(request.url.getHost(), request.ipaddr);
+
+            HttpRequestBaseHC4 httpRequest;
+            if (request.method.equals("POST")) {
+                HttpPostHC4 post = new HttpPostHC4(request.url);
+                if (request.body != null) {
+                    post.setEntity(new ByteArrayEntityHC4(request.body));
+                }
+                httpRequest = post;
+            } else if (request.method.equals("GET")) {
+                httpRequest = new HttpGetHC4(request.url);
+            } else {
+                throw new IllegalArgumentException("Unsupported method " + request.method);
+            }
+
+            RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(request.connectTimeout).setSocketTimeout(request.readTimeout).build();
+            httpRequest.setConfig(requestConfig);
+
+            for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                httpRequest.addHeader(header.getKey(), header.getValue());
+            }
+
+            response = new Response(httpClient.execute(httpRequest));
+        } catch (IOException e) {
+            callback.onError(e);
+            return;
+        }
+
+        try {
+            callback.onResult(response);
+        } finally {
+            response.close();
+        }
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        httpClientPool.close();
+    }
+
+    private static class Response implements TransportResponse {
+        private final CloseableHttpResponse response;
+        private boolean closed;
+
+        Response(CloseableHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        @Override
+        public String getStatusLine() {
+            return response.getStatusLine().toString();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            Header header = response.getFirstHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            HttpEntity entity = response.getEntity();
+            return entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // Drain anything the caller didn't read, so the connection can be reused, and
+            // release the connection back to the pool
+            try {
+                EntityUtilsHC4.consume(response.getEntity());
+                response.close();
+            } catch (IOException e) {
+                logger.warning(e.toString());
+            }
+        }
+    }
+}
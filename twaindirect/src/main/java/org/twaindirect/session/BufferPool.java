@@ -0,0 +1,121 @@
+package org.twaindirect.session;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of ByteBuffers, all the same size, either on the heap or direct.
+ *
+ * acquire() hands out a pooled buffer if there is one (a hit), otherwise allocates a
+ * new one (a miss). release() keeps the buffer for reuse unless the pool is already
+ * full, in which case it's discarded and left to the garbage collector. Once a
+ * capture reaches a steady state, nearly every acquire should be a hit.
+ *
+ * Heap buffers are backed by an array, so they can be used with stream APIs through
+ * array().
+ */
+public final class BufferPool {
+    // Heap buffers for reading and copying image data, used when a pool isn't configured
+    private static final BufferPool sharedPool = new BufferPool(64 * 1024, 32, false);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    // Number of buffers in the pool. Tracked separately, as ConcurrentLinkedQueue.size
+    // walks the whole queue.
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * Return the pool of 64 KB heap buffers used when one isn't configured.
+     */
+    public static BufferPool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * @param bufferSize Capacity of each buffer, in bytes
+     * @param maxPooled Most buffers to keep for reuse
+     * @param direct Allocate direct buffers rather than heap buffers
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Return an empty buffer, with its position at 0 and its limit at its capacity.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+
+        hits.incrementAndGet();
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back. It mustn't be used again by the caller.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+            discards.incrementAndGet();
+        }
+    }
+
+    // Number of acquires served from the pool
+    public long getHits() {
+        return hits.get();
+    }
+
+    // Number of acquires that had to allocate a new buffer
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // Number of releases dropped because the pool was full
+    public long getDiscards() {
+        return discards.get();
+    }
+
+    // Number of buffers waiting in the pool
+    public int getPooledCount() {
+        return pooled.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "BufferPool(%d bytes, %s): %d hits, %d misses, %d discarded, %d pooled",
+                bufferSize, direct ? "direct" : "heap", getHits(), getMisses(), getDiscards(), getPooledCount());
+    }
+}
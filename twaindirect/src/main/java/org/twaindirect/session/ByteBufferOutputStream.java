@@ -0,0 +1,33 @@
+package org.twaindirect.session;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * OutputStream that writes into a ByteBuffer, from its position up to its limit. It
+ * doesn't grow - writing past the limit throws an IOException.
+ */
+final class ByteBufferOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Buffer is full");
+        }
+        buffer.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.remaining()) {
+            throw new IOException("Buffer is full");
+        }
+        buffer.put(b, off, len);
+    }
+}
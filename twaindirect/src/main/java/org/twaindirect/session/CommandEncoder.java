@@ -0,0 +1,105 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the body of a twainlocalscanner command:
+ *
+ *      {"kind":"twainlocalscanner","method":"...","commandId":"...","params":{...}}
+ *
+ * straight into the bytes sent on the wire. Everything up to the command ID is fixed
+ * for each method, so it's encoded once and cached.
+ */
+final class CommandEncoder {
+    // Encoded start of the body for each method, up to the opening quote of the commandId
+    private static final ConcurrentHashMap<String, byte[]> prefixes = new ConcurrentHashMap<>();
+
+    private static final byte[] paramsSeparator = ascii("\",\"params\":");
+    private static final byte[] endWithParams = ascii("}");
+    private static final byte[] endWithoutParams = ascii("\"}");
+
+    // Command IDs are random per process, then counted, so making one never waits
+    // for SecureRandom. Keep the UUID version and variant bits, and count in the
+    // low 48 bits.
+    private static final UUID commandIdBase = UUID.randomUUID();
+    private static final AtomicLong commandIdCounter = new AtomicLong(commandIdBase.getLeastSignificantBits() & 0xffffffffffffL);
+
+    private CommandEncoder() {
+    }
+
+    /**
+     * Return a new command ID. IDs are unique within the process and random across
+     * processes, like UUID.randomUUID().
+     */
+    static String newCommandId() {
+        long counter = commandIdCounter.incrementAndGet() & 0xffffffffffffL;
+        long leastSignificant = (commandIdBase.getLeastSignificantBits() & ~0xffffffffffffL) | counter;
+        return new UUID(commandIdBase.getMostSignificantBits(), leastSignificant).toString();
+    }
+
+    /**
+     * Encode a command as UTF-8 JSON.
+     * @param params The command's params, or null to leave them out
+     */
+    static byte[] encode(String method, String commandId, JSONObject params) {
+        byte[] prefix = prefix(method);
+        byte[] id = ascii(commandId);
+        for (byte b : id) {
+            if (b < ' ' || b == '"' || b == '\\') {
+                throw new IllegalArgumentException("Command IDs must be printable ASCII: " + commandId);
+            }
+        }
+
+        if (params == null) {
+            return concat(prefix, id, endWithoutParams, null, null);
+        }
+
+        return concat(prefix, id, paramsSeparator, utf8(params.toString()), endWithParams);
+    }
+
+    private static byte[] prefix(String method) {
+        byte[] prefix = prefixes.get(method);
+        if (prefix == null) {
+            prefix = utf8("{\"kind\":\"twainlocalscanner\",\"method\":" + JSONObject.quote(method) + ",\"commandId\":\"");
+            prefixes.putIfAbsent(method, prefix);
+        }
+        return prefix;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b, byte[] c, byte[] d, byte[] e) {
+        int length = a.length + b.length + c.length + (d != null ? d.length : 0) + (e != null ? e.length : 0);
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : new byte[][] { a, b, c, d, e }) {
+            if (part != null) {
+                System.arraycopy(part, 0, result, offset, part.length);
+                offset += part.length;
+            }
+        }
+        return result;
+    }
+
+    // Command IDs and the fixed parts of the envelope are plain ASCII. Anything else
+    // comes out negative, which encode rejects.
+    private static byte[] ascii(String value) {
+        byte[] result = new byte[value.length()];
+        for (int idx = 0; idx < result.length; idx++) {
+            char c = value.charAt(idx);
+            result[idx] = c < 0x80 ? (byte)c : -1;
+        }
+        return result;
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.twaindirect.session;
+
+/**
+ * Implemented by a SessionListener that wants to know how far image delivery has got
+ * in scan order.
+ *
+ * This matters with BlockDownloaderConfig.outOfOrderDelivery, where each image is
+ * delivered as soon as its own parts have arrived, so a later page can be delivered
+ * before an earlier one that is still downloading. The image's address in its
+ * metadata gives its sheet and image numbers; this watermark says when every image
+ * before a point has been delivered, so the application can put them back in order.
+ *
+ * It is also sent in the normal ordered mode, after each image.
+ */
+public interface DeliveryWatermarkListener {
+    /**
+     * Sent when every image up to and including this one has been delivered, after
+     * the onImageReceived calls for those images. The watermark only moves forward,
+     * and several images may be covered by one call.
+     *
+     * @param sheetNumber
+     * @param imageNumber
+     */
+    void onImagesDeliveredThrough(Session session, int sheetNumber, int imageNumber);
+}
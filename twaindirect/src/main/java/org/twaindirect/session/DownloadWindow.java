@@ -0,0 +1,120 @@
+package org.twaindirect.session;
+
+
+/**
+ * Decides how many image blocks BlockDownloader downloads at once.
+ *
+ * This is an additive increase / multiplicative decrease controller. Completed downloads
+ * are measured in rounds of one window's worth of blocks. After each round:
+ *  - if throughput went up, we try one more simultaneous download
+ *  - if throughput didn't go up, but blocks are taking much longer than the best we've
+ *    seen, the link is saturated and we back off
+ * A failed download backs off immediately.
+ *
+ * Methods must be called with the BlockDownloader lock held.
+ */
+class DownloadWindow {
+    private static final LazyLog logger = LazyLog.getLog(DownloadWindow.class);
+
+    // Throughput has to improve by this much to count as rising
+    private static final double throughputGain = 1.05;
+
+    // Back off when the average time per byte exceeds the best we've seen by this factor
+    private static final double latencyLimit = 2.0;
+
+    private final int minSize;
+    private final int maxSize;
+    private final boolean adaptive;
+
+    // Current number of simultaneous downloads allowed
+    private int size;
+
+    // Measurements for the current round
+    private long roundStart;
+    private long roundBytes;
+    private long roundLatency;
+    private int roundBlocks;
+
+    // Throughput of the previous round, in bytes per second
+    private double lastThroughput;
+
+    // Lowest average nanoseconds per byte seen for a round
+    private double bestLatencyPerByte = Double.MAX_VALUE;
+
+    DownloadWindow(BlockDownloaderConfig config) {
+        this.minSize = Math.max(1, config.minWindowSize);
+        this.maxSize = Math.max(minSize, config.maxWindowSize);
+        this.adaptive = config.adaptiveWindow;
+        this.size = Math.min(maxSize, Math.max(minSize, config.windowSize));
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * A block download completed.
+     * @param bytes Size of the block
+     * @param latency Time taken to download the block, in nanoseconds
+     */
+    void onSuccess(long bytes, long latency) {
+        if (!adaptive) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (roundBlocks == 0) {
+            // The round started when the first of its downloads did
+            roundStart = now - latency;
+        }
+
+        roundBytes += bytes;
+        roundLatency += latency;
+        roundBlocks++;
+
+        if (roundBlocks < size) {
+            return;
+        }
+
+        long elapsed = Math.max(1, now - roundStart);
+        double throughput = roundBytes * 1e9 / elapsed;
+        double latencyPerByte = roundLatency / (double)Math.max(1, roundBytes);
+        bestLatencyPerByte = Math.min(bestLatencyPerByte, latencyPerByte);
+
+        if (throughput > lastThroughput * throughputGain) {
+            resize(size + 1);
+        } else if (latencyPerByte > bestLatencyPerByte * latencyLimit) {
+            resize(size * 3 / 4);
+        }
+
+        lastThroughput = throughput;
+        roundBlocks = 0;
+        roundBytes = 0;
+        roundLatency = 0;
+    }
+
+    /**
+     * A block download failed.
+     */
+    void onFailure() {
+        if (!adaptive) {
+            return;
+        }
+
+        resize(size / 2);
+
+        // Start measuring again from scratch
+        lastThroughput = 0;
+        roundBlocks = 0;
+        roundBytes = 0;
+        roundLatency = 0;
+    }
+
+    private void resize(int newSize) {
+        newSize = Math.min(maxSize, Math.max(minSize, newSize));
+        if (newSize != size) {
+            logger.fine("Download window %d -> %d", size, newSize);
+            size = newSize;
+        }
+    }
+}
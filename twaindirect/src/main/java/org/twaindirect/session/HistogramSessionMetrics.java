@@ -0,0 +1,194 @@
+package org.twaindirect.session;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SessionMetrics that keeps LatencyHistograms in memory, cheaply enough to leave on in
+ * production. Read the histograms at any time, or use toString() for a summary.
+ */
+public class HistogramSessionMetrics implements SessionMetrics {
+    // Round trip time by command
+    private final ConcurrentHashMap<String, LatencyHistogram> commandTimes = new ConcurrentHashMap<>();
+
+    // Number of failed commands by command
+    private final ConcurrentHashMap<String, LatencyHistogram> commandFailures = new ConcurrentHashMap<>();
+
+    // Time blocks wait in the queue before a worker picks them up
+    private final LatencyHistogram blockQueueTime = new LatencyHistogram();
+
+    // Time from starting a block download to the response arriving
+    private final LatencyHistogram blockFirstByteTime = new LatencyHistogram();
+
+    // Time from starting a block download to the block being saved
+    private final LatencyHistogram blockDownloadTime = new LatencyHistogram();
+
+    // Size of each block
+    private final LatencyHistogram blockBytes = new LatencyHistogram();
+
+    // Failed block downloads, by time taken to fail
+    private final LatencyHistogram blockFailures = new LatencyHistogram();
+
+    private final LatencyHistogram assemblyTime = new LatencyHistogram();
+    private final LatencyHistogram listenerTime = new LatencyHistogram();
+    private final LatencyHistogram releaseTime = new LatencyHistogram();
+
+    // Timestamps for blocks we've heard about, until they're done
+    private final ConcurrentHashMap<Integer, BlockTimes> blocks = new ConcurrentHashMap<>();
+
+    private static class BlockTimes {
+        volatile long queued;
+        volatile long started;
+    }
+
+    private static LatencyHistogram histogram(ConcurrentHashMap<String, LatencyHistogram> map, String key) {
+        LatencyHistogram histogram = map.get(key);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = map.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    private BlockTimes blockTimes(int blockNum) {
+        BlockTimes times = blocks.get(blockNum);
+        if (times == null) {
+            BlockTimes newTimes = new BlockTimes();
+            times = blocks.putIfAbsent(blockNum, newTimes);
+            if (times == null) {
+                times = newTimes;
+            }
+        }
+        return times;
+    }
+
+    @Override
+    public void commandCompleted(String method, long duration, boolean success) {
+        histogram(success ? commandTimes : commandFailures, method).record(duration);
+    }
+
+    @Override
+    public void blockQueued(int blockNum, long time) {
+        blockTimes(blockNum).queued = time;
+    }
+
+    @Override
+    public void blockStarted(int blockNum, long time) {
+        BlockTimes times = blockTimes(blockNum);
+        times.started = time;
+        if (times.queued != 0) {
+            blockQueueTime.record(time - times.queued);
+        }
+    }
+
+    @Override
+    public void blockFirstByte(int blockNum, long time) {
+        BlockTimes times = blocks.get(blockNum);
+        if (times != null && times.started != 0) {
+            blockFirstByteTime.record(time - times.started);
+        }
+    }
+
+    @Override
+    public void blockCompleted(int blockNum, long time, long bytes) {
+        BlockTimes times = blocks.remove(blockNum);
+        if (times != null && times.started != 0) {
+            blockDownloadTime.record(time - times.started);
+        }
+        blockBytes.record(bytes);
+    }
+
+    @Override
+    public void blockFailed(int blockNum, long time) {
+        // Keep the queued time, in case the block is downloaded again
+        BlockTimes times = blocks.get(blockNum);
+        if (times != null && times.started != 0) {
+            blockFailures.record(time - times.started);
+        }
+    }
+
+    @Override
+    public void imageAssembled(int parts, long duration) {
+        assemblyTime.record(duration);
+    }
+
+    @Override
+    public void imageDelivered(long duration) {
+        listenerTime.record(duration);
+    }
+
+    @Override
+    public void blocksReleased(int fromBlock, int toBlock, long duration) {
+        releaseTime.record(duration);
+    }
+
+    /**
+     * Round trip times for a command, or null if it hasn't completed successfully.
+     */
+    public LatencyHistogram getCommandTimes(String method) {
+        return commandTimes.get(method);
+    }
+
+    /**
+     * Time taken by failed attempts at a command, or null if it hasn't failed.
+     */
+    public LatencyHistogram getCommandFailures(String method) {
+        return commandFailures.get(method);
+    }
+
+    public LatencyHistogram getBlockQueueTime() {
+        return blockQueueTime;
+    }
+
+    public LatencyHistogram getBlockFirstByteTime() {
+        return blockFirstByteTime;
+    }
+
+    public LatencyHistogram getBlockDownloadTime() {
+        return blockDownloadTime;
+    }
+
+    public LatencyHistogram getBlockBytes() {
+        return blockBytes;
+    }
+
+    public LatencyHistogram getBlockFailures() {
+        return blockFailures;
+    }
+
+    public LatencyHistogram getAssemblyTime() {
+        return assemblyTime;
+    }
+
+    public LatencyHistogram getListenerTime() {
+        return listenerTime;
+    }
+
+    public LatencyHistogram getReleaseTime() {
+        return releaseTime;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commandTimes).entrySet()) {
+            result.append("command ").append(entry.getKey()).append(": ").append(entry.getValue().toDurationString()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commandFailures).entrySet()) {
+            result.append("failed ").append(entry.getKey()).append(": ").append(entry.getValue().toDurationString()).append('\n');
+        }
+        result.append("block queue: ").append(blockQueueTime.toDurationString()).append('\n');
+        result.append("block first byte: ").append(blockFirstByteTime.toDurationString()).append('\n');
+        result.append("block download: ").append(blockDownloadTime.toDurationString()).append('\n');
+        result.append("block bytes: ").append(blockBytes).append('\n');
+        result.append("block failures: ").append(blockFailures.toDurationString()).append('\n');
+        result.append("assembly: ").append(assemblyTime.toDurationString()).append('\n');
+        result.append("onImageReceived: ").append(listenerTime.toDurationString()).append('\n');
+        result.append("release: ").append(releaseTime.toDurationString()).append('\n');
+        return result.toString();
+    }
+}
@@ -1,18 +1,17 @@
 package org.twaindirect.session;
 
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPostHC4;
-import org.apache.http.entity.StringEntityHC4;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.logging.Logger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -20,7 +19,7 @@ import java.util.logging.Logger;
  * metadata as an application/json part, and the image as an application/pdf part.
  */
 class HttpBlockRequest implements Runnable {
-    private static final Logger logger = Logger.getLogger(HttpBlockRequest.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(HttpBlockRequest.class);
 
     public URI url;
     public String ipaddr;
@@ -29,48 +28,128 @@ class HttpBlockRequest implements Runnable {
     AsyncResult<InputStream> listener;
     public JSONObject requestBody;
 
+    // Already encoded request body, sent instead of requestBody if set
+    public byte[] requestBytes;
+
     public int readTimeout = 30000;
     public int connectTimeout = 20000;
 
     String commandId;
 
+    // Sends the request. If this isn't set, a BlockingTransport on httpClientPool is used.
+    ScannerTransport transport;
+
+    // Source of the HttpClient used to send the request, if transport isn't set
+    HttpClientPool httpClientPool;
+
+    // Set once the listener has been called
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    // Counted down once the listener has returned
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    /**
+     * Send the request, and wait until the listener has been called.
+     */
     @Override
     public void run() {
-        String result = null;
+        send();
+
         try {
-            logger.finer("Executing Image Block request for " + url + " commandId " + commandId);
-            if (requestBody != null) {
-                logger.finest("Request body: " + requestBody.toString(2));
+            // The transport's own timeouts should end the request first. This makes sure a
+            // response that never comes can't hold the thread forever.
+            if (!completed.await(connectTimeout + readTimeout, TimeUnit.MILLISECONDS)) {
+                if (!started.compareAndSet(false, true)) {
+                    // The listener is reading the block, and the socket timeout bounds that
+                    completed.await();
+                    return;
+                }
+
+                try {
+                    listener.onError(new TimeoutException());
+                } finally {
+                    completed.countDown();
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            //Create a connection
-            CloseableHttpClient httpClient = HttpClientBuilder.createHttpClient(url.getHost(), ipaddr);
-            HttpPostHC4 request = new HttpPostHC4(url.toString());
+    /**
+     * Send the request. With an asynchronous transport this returns straight away, and the
+     * listener is called once the response arrives.
+     */
+    public void send() {
+        logger.finer("Executing Image Block request for %s commandId %s", url, commandId);
+        if (requestBytes != null) {
+            logger.finest("Request body: %s", LazyLog.utf8(requestBytes));
+        } else {
+            logger.finest("Request body: %s", LazyLog.prettyJson(requestBody));
+        }
 
-            RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
-            request.setConfig(requestConfig);
+        TransportRequest request = new TransportRequest();
+        request.method = "POST";
+        request.url = url;
+        request.ipaddr = ipaddr;
+        request.connectTimeout = connectTimeout;
+        request.readTimeout = readTimeout;
+        request.headers.put("Content-Type", "application/json; charset=UTF-8");
 
-            request.addHeader("Content-Type", "application/json; charset=UTF-8");
+        // Set any custom headers
+        request.headers.putAll(headers);
 
-            // Set any custom headers
-            for (String key : headers.keySet()) {
-                request.addHeader(key, headers.get(key));
+        // Set the request body
+        try {
+            request.body = requestBytes;
+            if (request.body == null && requestBody != null) {
+                request.body = requestBody.toString().getBytes("UTF-8");
             }
+        } catch (UnsupportedEncodingException e) {
+            listener.onError(e);
+            completed.countDown();
+            return;
+        }
 
-            // Set the request body
-            if (requestBody != null) {
-                byte[] bodyBytes = requestBody.toString().getBytes("UTF-8");
-                HttpPostHC4 postRequest = (HttpPostHC4)request;
-                postRequest.setEntity(new StringEntityHC4(requestBody.toString()));
+        ScannerTransport sender = transport != null ? transport : new BlockingTransport(httpClientPool);
+        sender.send(request, new AsyncResult<TransportResponse>() {
+            @Override
+            public void onResult(TransportResponse response) {
+                if (!started.compareAndSet(false, true)) {
+                    // Already timed out
+                    response.close();
+                    return;
+                }
+
+                try {
+                    InputStream content;
+                    try {
+                        content = response.getContent();
+                    } catch (IOException e) {
+                        listener.onError(e);
+                        return;
+                    }
+
+                    listener.onResult(content);
+                } finally {
+                    // Drain anything the listener didn't read, so the connection can be reused
+                    response.close();
+                    completed.countDown();
+                }
             }
 
-            // Connect to our url, get the response
-            CloseableHttpResponse response = httpClient.execute(request);
-
-            // If we're local, we will have the result now
-            listener.onResult(response.getEntity().getContent());
-        } catch (IOException e) {
-            listener.onError(e);
-        }
+            @Override
+            public void onError(Exception e) {
+                if (!started.compareAndSet(false, true)) {
+                    return;
+                }
+
+                try {
+                    listener.onError(e);
+                } finally {
+                    completed.countDown();
+                }
+            }
+        });
     }
 }
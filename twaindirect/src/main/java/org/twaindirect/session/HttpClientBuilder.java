@@ -7,15 +7,16 @@ import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContextBuilder;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategyHC4;
 import org.apache.http.impl.conn.InMemoryDnsResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Helper class that constructs an HttpClient configured for TWAIN Direct usage.
@@ -28,10 +29,23 @@ import java.util.logging.Logger;
  * And we need to configure the https stack to not require chaning back to one of the big
  * SSL cert vendors because the scanner self-signs a cert for its local name.
  *
- * Used by HttpBlockRequest and HttpJsonRequest.
+ * The client uses a pooling connection manager, so connections (and the TLS sessions
+ * negotiated on them) are kept alive and reused by subsequent requests. Clients are
+ * expensive to create, so use HttpClientPool to share them rather than calling this
+ * for every request.
  */
 public class HttpClientBuilder {
-    private static final Logger logger = Logger.getLogger(HttpClientBuilder.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(HttpClientBuilder.class);
+
+    // Maximum number of pooled connections to a single scanner. This needs to cover the
+    // image block download window, the waitForEvents long-poll and regular commands.
+    private static final int maxConnectionsPerRoute = 10;
+
+    // Maximum number of pooled connections overall
+    private static final int maxConnectionsTotal = 20;
+
+    // Connections are never kept alive for longer than this, in seconds
+    private static final int connectionTimeToLive = 60;
 
     public static CloseableHttpClient createHttpClient(String host, String ipaddr) throws UnknownHostException {
 
@@ -47,17 +61,24 @@ public class HttpClientBuilder {
             SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(
                     builder.build());
 
-            BasicHttpClientConnectionManager connManager = new BasicHttpClientConnectionManager(
+            PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager(
                     RegistryBuilder.<ConnectionSocketFactory>create()
                             .register("http", PlainConnectionSocketFactory.getSocketFactory())
                             .register("https", sslsf)
                             .build(),
                     null, /* Default ConnectionFactory */
                     null, /* Default SchemePortResolver */
-                    resolver /* Our DnsResolver */
+                    resolver, /* Our DnsResolver */
+                    connectionTimeToLive, TimeUnit.SECONDS
             );
+            connManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connManager.setMaxTotal(maxConnectionsTotal);
 
-            CloseableHttpClient httpClient = org.apache.http.impl.client.HttpClientBuilder.create().setConnectionManager(connManager).setSSLSocketFactory(sslsf).build();
+            CloseableHttpClient httpClient = org.apache.http.impl.client.HttpClientBuilder.create()
+                    .setConnectionManager(connManager)
+                    .setSSLSocketFactory(sslsf)
+                    .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategyHC4.INSTANCE)
+                    .build();
             return httpClient;
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
@@ -0,0 +1,82 @@
+package org.twaindirect.session;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of HttpClients, one per scanner host.
+ *
+ * Creating an HttpClient means building an SSLContext and a connection manager, and every
+ * request made with a fresh client pays for a new TCP connection and a full TLS handshake.
+ * Requests get their client from here instead, so connections to the scanner are kept alive
+ * and reused, and TLS sessions can be resumed.
+ *
+ * Clients are keyed by host name plus the IP address we resolve that host to, because the
+ * IP address is baked into the client's DNS resolver.
+ *
+ * A local Session owns a pool for the scanner it talks to (shared with its BlockDownloader)
+ * and closes it when the session is closed. CloudConnection owns a pool for the cloud
+ * service, which its cloud sessions share but never close.
+ * A closed pool can still be used - clients are created again on demand.
+ */
+public class HttpClientPool {
+    private static final LazyLog logger = LazyLog.getLog(HttpClientPool.class);
+
+    // Pool used by requests that weren't given one explicitly
+    private static final HttpClientPool sharedPool = new HttpClientPool();
+
+    private final Map<String, CloseableHttpClient> clients = new HashMap<>();
+
+    /**
+     * Return the pool used by requests that haven't been configured with one.
+     */
+    public static HttpClientPool getSharedPool() {
+        return sharedPool;
+    }
+
+    /**
+     * Return the client for this host, creating it if required.
+     * @param host The host name from the request URL
+     * @param ipaddr The IP address host resolves to, or null to use regular DNS resolution
+     */
+    public CloseableHttpClient getHttpClient(String host, String ipaddr) throws UnknownHostException {
+        String key = ipaddr == null ? host : host + "/" + ipaddr;
+
+        synchronized(this) {
+            CloseableHttpClient httpClient = clients.get(key);
+            if (httpClient == null) {
+                logger.fine("Creating HttpClient for %s", key);
+                httpClient = HttpClientBuilder.createHttpClient(host, ipaddr);
+                if (httpClient != null) {
+                    clients.put(key, httpClient);
+                }
+            }
+            return httpClient;
+        }
+    }
+
+    /**
+     * Close all the clients in the pool, and their connections.
+     */
+    public void close() {
+        List<CloseableHttpClient> closing;
+        synchronized(this) {
+            closing = new ArrayList<>(clients.values());
+            clients.clear();
+        }
+
+        for (CloseableHttpClient httpClient : closing) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                logger.warning(e.toString());
+            }
+        }
+    }
+}
@@ -1,28 +1,25 @@
 package org.twaindirect.session;
 
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGetHC4;
-import org.apache.http.client.methods.HttpPostHC4;
-import org.apache.http.client.methods.HttpRequestBaseHC4;
-import org.apache.http.entity.StringEntityHC4;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.util.EntityUtilsHC4;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.twaindirect.cloud.CloudConnection;
 import org.twaindirect.cloud.CloudEventBroker;
-import org.twaindirect.cloud.CloudEventBrokerListener;
+import org.twaindirect.cloud.CloudEventBrokerJSONListener;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
 /**
  * Wrapper for a JSON request.
@@ -30,8 +27,8 @@ import java.util.logging.Logger;
  * through the CloudEventBroker. This class is aware of this, and when we're in cloud mode,
  * will register the request with CloudEventBroker and the JSON response when it arrives.
  */
-public class HttpJsonRequest implements Runnable, CloudEventBrokerListener {
-    private static final Logger logger = Logger.getLogger(HttpJsonRequest.class.getName());
+public class HttpJsonRequest implements Runnable, CloudEventBrokerJSONListener {
+    private static final LazyLog logger = LazyLog.getLog(HttpJsonRequest.class);
     private static final String TAG = "HttpJsonRequest";
 
     public URI url;
@@ -46,118 +43,318 @@ public class HttpJsonRequest implements Runnable, CloudEventBrokerListener {
     CloudEventBroker cloudEventBroker;
     public CloudConnection cloudConnection;
 
+    // Sends the request. If this isn't set, a BlockingTransport on httpClientPool is used.
+    public ScannerTransport transport;
+
+    // Source of the HttpClient used to send the request, if transport isn't set
+    public HttpClientPool httpClientPool;
+
     public AsyncResult<JSONObject> listener;
 
-    CountDownLatch responseReady = new CountDownLatch(1);
+    // Set once the listener has been called
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    // Counted down once the listener has been called
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    // Fails a cloud request whose MQTT response doesn't arrive in time
+    private volatile ScheduledFuture<?> responseTimeout;
+
+    // Shared timer for cloud response timeouts
+    private static final ScheduledThreadPoolExecutor timeoutExecutor = createTimeoutExecutor();
 
     public JSONObject requestBody;
 
+    // Already encoded request body, sent instead of requestBody if set
+    public byte[] requestBytes;
+
+    // The twainlocalscanner command, such as waitForEvents, for logging and metrics
+    public String command;
+
     private boolean attemptedTokenRefresh = false;
 
+    // Receives the round trip time, if set
+    public SessionMetrics metrics;
+
+    // When the request was first sent, for metrics
+    private long startTime;
+
+    private static ScheduledThreadPoolExecutor createTimeoutExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HttpJsonRequest-timeout");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Send the request, and wait until the listener has been called.
+     */
     @Override
     public void run() {
-        String result = null;
+        send();
+
         try {
-            logger.finer("Executing JSON request for " + url + " commandId " + commandId);
-            if (requestBody != null) {
-                logger.finest("Request body: " + requestBody.toString(2));
+            // The transport's own timeouts should end the request first. This makes sure a
+            // response that never comes can't hold the thread forever.
+            if (!completed.await(connectTimeout + readTimeout, TimeUnit.MILLISECONDS)) {
+                if (responseTimeout != null) {
+                    // Waiting for the MQTT response, which has its own timeout
+                    completed.await();
+                    return;
+                }
+
+                if (cloudEventBroker != null) {
+                    cloudEventBroker.removeListener(this);
+                }
+                fail(new TimeoutException());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            //Create a connection
-            CloseableHttpClient httpClient = HttpClientBuilder.createHttpClient(url.getHost(), ipaddr);
+    /**
+     * Send the request. With an asynchronous transport this returns straight away, and the
+     * listener is called once the response arrives.
+     */
+    public void send() {
+        if (startTime == 0) {
+            startTime = System.nanoTime();
+        }
 
-            HttpRequestBaseHC4 request = null;
-            if (method.equals("POST")) {
-                request = new HttpPostHC4(url.toString());
-            } else if (method.equals("GET")) {
-                request = new HttpGetHC4(url.toString());
+        logger.finer("Executing JSON request for %s commandId %s", url, commandId);
+        if (requestBytes != null) {
+            logger.finest("Request body: %s", LazyLog.utf8(requestBytes));
+        } else {
+            logger.finest("Request body: %s", LazyLog.prettyJson(requestBody));
+        }
+
+        TransportRequest request = new TransportRequest();
+        request.method = method;
+        request.url = url;
+        request.ipaddr = ipaddr;
+        request.connectTimeout = connectTimeout;
+        request.readTimeout = readTimeout;
+
+        request.headers.put("Content-Type", "application/json; charset=UTF-8");
+        if (cloudConnection != null) {
+            request.headers.put("Authorization", cloudConnection.getAccessToken());
+        }
+
+        // Set any custom headers
+        request.headers.putAll(headers);
+
+        // Set the request body
+        try {
+            request.body = requestBytes;
+            if (request.body == null && requestBody != null) {
+                request.body = requestBody.toString().getBytes("UTF-8");
             }
+        } catch (UnsupportedEncodingException e) {
+            fail(e);
+            return;
+        }
 
-            // Configure timeouts
-            RequestConfig requestConfig = RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).setSocketTimeout(readTimeout).build();
-            request.setConfig(requestConfig);
+        if (cloudEventBroker != null) {
+            // The actual response will arrive through MQTT .. add the listener
+            cloudEventBroker.addListener(this);
+        }
 
-            request.addHeader("Content-Type", "application/json; charset=UTF-8");
+        ScannerTransport sender = transport != null ? transport : new BlockingTransport(httpClientPool);
+        sender.send(request, new AsyncResult<TransportResponse>() {
+            @Override
+            public void onResult(TransportResponse response) {
+                processResponse(response);
+            }
 
-            if (cloudConnection != null) {
-                request.addHeader("Authorization", cloudConnection.getAccessToken());
+            @Override
+            public void onError(Exception e) {
+                if (cloudEventBroker != null) {
+                    cloudEventBroker.removeListener(HttpJsonRequest.this);
+                }
+                fail(e);
             }
+        });
+    }
 
-            // Set any custom headers
-            for (String key : headers.keySet()) {
-                request.addHeader(key, headers.get(key));
+    private void processResponse(TransportResponse response) {
+        if (cloudEventBroker == null) {
+            // Not using MQTT for this request, so parse the response as it arrives
+            Object json;
+            try {
+                json = JsonStreamParser.parse(response.getContent());
+            } catch (IOException | JSONException e) {
+                fail(e);
+                return;
+            } finally {
+                // Read whatever's left, so the connection goes back into the pool
+                response.close();
             }
 
-            // Set the request body
-            if (requestBody != null) {
-                byte[] bodyBytes = requestBody.toString().getBytes("UTF-8");
-                HttpPostHC4 postRequest = (HttpPostHC4)request;
-                postRequest.setEntity(new StringEntityHC4(requestBody.toString()));
+            processResponse(json);
+            return;
+        }
+
+        // Check for an error sending the request
+        int statusCode = response.getStatusCode();
+        if (statusCode != 200) {
+            if (logger.isLoggable(Level.FINEST)) {
+                try {
+                    logger.finest(StreamUtils.inputStreamToString(response.getContent()));
+                } catch (IOException e) {
+                    // Just for logging
+                }
             }
+            response.close();
+
+            Exception error = new Exception("HTTP response " + response.getStatusLine());
 
-            if (cloudEventBroker != null) {
-                // The actual response will arrive through MQTT .. add the listener
-                cloudEventBroker.addListener(this);
+            // 401 can mean our OAuth2 access token has expired. Attempt to refresh it.
+            if (statusCode == 401 && !attemptedTokenRefresh) {
+                attemptedTokenRefresh = true;
+                refreshTokenAndRetry(error);
+                return;
             }
 
-            // Connect to our url, get the response
-            CloseableHttpResponse response = httpClient.execute(request);
+            cloudEventBroker.removeListener(this);
+            fail(error);
+            return;
+        }
+        response.close();
+
+        if (finished.get()) {
+            // The MQTT response beat the HTTP response
+            return;
+        }
 
-            if (cloudEventBroker == null) {
-                // Not using MQTT for this request, so we will have the response here
-                String json = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
-                processResponse(json);
+        // The response arrives through MQTT. Give up on it if it takes too long, without
+        // holding a thread while we wait.
+        responseTimeout = timeoutExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!finished.get()) {
+                    // Don't leave the listener registered waiting for a response that won't come
+                    cloudEventBroker.removeListener(HttpJsonRequest.this);
+                    fail(new TimeoutException());
+                }
+            }
+        }, readTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refresh the access token and send the request again, or fail with error if the
+     * refresh doesn't work. The refresh blocks, so with an asynchronous transport it's
+     * done on the connection's executor rather than the transport's callback thread.
+     */
+    private void refreshTokenAndRetry(final Exception error) {
+        if (transport == null || !transport.isAsync()) {
+            if (cloudConnection.refreshToken()) {
+                send();
             } else {
-                // Check for an error sending the request
-                if (response.getStatusLine().getStatusCode() != 200) {
-                    // 401 can mean our OAuth2 access token has expired. Attempt to refresh it.
-                    if (response.getStatusLine().getStatusCode() == 401 && !attemptedTokenRefresh) {
-                        attemptedTokenRefresh = true;
-                        if (cloudConnection.refreshToken()) {
-                            // Retry
-                            run();
-                            return;
-                        }
-                    }
-
-                    String responseBody = EntityUtilsHC4.toString(response.getEntity(), "UTF-8");
-                    logger.finest(responseBody);
-                    listener.onError(new Exception("HTTP response " + response.getStatusLine().toString()));
+                cloudEventBroker.removeListener(this);
+                fail(error);
+            }
+            return;
+        }
+
+        cloudConnection.refreshTokenAsync(new AsyncResult<Boolean>() {
+            @Override
+            public void onResult(Boolean refreshed) {
+                if (finished.get()) {
+                    // Timed out while refreshing
                     return;
                 }
 
-                // Block here for the response
-                boolean success = responseReady.await(readTimeout, TimeUnit.MILLISECONDS);
-                if (!success) {
-                    listener.onError(new TimeoutException());
+                if (refreshed) {
+                    send();
+                } else {
+                    onError(error);
                 }
             }
-        } catch (IOException | JSONException e) {
-            listener.onError(e);
-        } catch (Exception e) {
-            listener.onError(e);
+
+            @Override
+            public void onError(Exception e) {
+                cloudEventBroker.removeListener(HttpJsonRequest.this);
+                fail(e);
+            }
+        });
+    }
+
+    private void processResponse(Object json) {
+        if (json instanceof JSONObject) {
+            processResponse((JSONObject)json);
+            return;
         }
+
+        // If the root is an array .. wrap it in an object just so we can return it
+        // as a JSONObject.
+        JSONObject root = new JSONObject();
+        root.put("array", (JSONArray)json);
+        succeed(root);
+    }
+
+    private void processResponse(JSONObject jsonObject) {
+        logger.finest("Processing response: %s", LazyLog.prettyJson(jsonObject));
+        succeed(jsonObject);
     }
 
-    private void processResponse(String json) {
+    private void succeed(JSONObject result) {
+        if (!finish()) {
+            return;
+        }
+
         try {
-            JSONObject jsonObject = new JSONObject(json);
-            logger.finest("Processing response: " + jsonObject.toString(2));
-            listener.onResult(jsonObject);
+            recordMetrics(true);
+            listener.onResult(result);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Listener failed handling the response to " + url, e);
+        } finally {
+            completed.countDown();
+        }
+    }
+
+    private void fail(Exception e) {
+        if (!finish()) {
             return;
-        } catch (JSONException e) {
-            // Ok that didn't work, let's try converting it to a JSONArray
         }
 
-        // If root waitFobject is an array .. wrap it an an object just so we can return it
-        // as a JSONObject.
         try {
-            JSONArray jsonArray = new JSONArray(json);
-            JSONObject root = new JSONObject();
-            root.put("array", jsonArray);
-            listener.onResult(root);
-        } catch (JSONException e) {
+            recordMetrics(false);
             listener.onError(e);
+        } catch (RuntimeException listenerFailure) {
+            logger.log(Level.WARNING, "Listener failed handling the error from " + url, listenerFailure);
+        } finally {
+            completed.countDown();
+        }
+    }
+
+    // Returns true the first time it's called. A cloud request can fail or time out
+    // around the same time as its response arrives, and the listener only hears once.
+    private boolean finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return false;
+        }
+
+        ScheduledFuture<?> timeout = responseTimeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        return true;
+    }
+
+    private void recordMetrics(boolean success) {
+        if (metrics != null) {
+            String name = command;
+            if (name == null) {
+                name = requestBody != null ? requestBody.optString("method", url.getPath()) : url.getPath();
+            }
+            metrics.commandCompleted(name, System.nanoTime() - startTime, success);
         }
     }
 
@@ -175,8 +372,21 @@ public class HttpJsonRequest implements Runnable, CloudEventBrokerListener {
      * @param json
      */
     @Override
-    public void deliverJSONResponse(String json) {
+    public void deliverJSONResponse(JSONObject json) {
         processResponse(json);
-        responseReady.countDown();
+    }
+
+    /**
+     * CloudEventBroker delivers the parsed response instead, but this is here for anyone
+     * delivering the response as a string.
+     * @param json
+     */
+    @Override
+    public void deliverJSONResponse(String json) {
+        try {
+            processResponse(new JSONObject(json));
+        } catch (JSONException e) {
+            fail(e);
+        }
     }
 }
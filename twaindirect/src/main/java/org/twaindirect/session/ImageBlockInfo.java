@@ -2,6 +2,7 @@ package org.twaindirect.session;
 
 import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
 import java.util.Locale;
 
 /**
@@ -22,12 +23,32 @@ class ImageBlockInfo {
     public int blockNum;
     public MoreParts moreParts;
 
+    // Size of this part's image data, in bytes
+    public long size;
+
+    // Set if the image data was written straight into its place in the image's file,
+    // rather than to a part file of its own
+    public boolean inPlace;
+
+    // The image data, if it's being kept in memory rather than written to a file
+    public ByteBuffer data;
+
     public JSONObject metadata;
 
     public String partFileName() {
         return String.format(Locale.US, "%d-%d-%d-%d.part", sheetNumber, imageNumber, imagePart, blockNum);
     }
 
+    // Block number of the image's first part
+    public int firstBlockNum() {
+        return blockNum - imagePart + 1;
+    }
+
+    // The image is assembled in its first part's part file
+    public String imageFileName() {
+        return String.format(Locale.US, "%d-%d-%d-%d.part", sheetNumber, imageNumber, 1, firstBlockNum());
+    }
+
     public String eventualFileName() {
         return String.format(Locale.US, "%d-%d-%d.pdf", sheetNumber, imageNumber, imagePart);
     }
@@ -0,0 +1,27 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by a SessionListener that wants small images handed over in memory,
+ * rather than as files in the temporary directory.
+ *
+ * Turn this on with BlockDownloaderConfig.inMemoryImageLimit. Images no bigger than
+ * the limit are then delivered here instead of to SessionListener.onImageReceived,
+ * without being written to disk. Larger images still arrive as files.
+ */
+public interface InMemoryImageListener {
+    /**
+     * Sent when an image has been completely received. The image is the PDF data
+     * between the buffer's position and limit.
+     *
+     * The buffer is reused for later images once this returns, so copy out anything
+     * that needs to be kept.
+     *
+     * @param image
+     * @param metadata
+     */
+    void onImageReceived(Session session, ByteBuffer image, JSONObject metadata);
+}
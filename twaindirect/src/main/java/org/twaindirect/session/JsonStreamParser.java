@@ -0,0 +1,332 @@
+package org.twaindirect.session;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses JSON straight from a UTF-8 byte stream into JSONObjects and JSONArrays,
+ * without reading the whole document into a String first and then parsing it again.
+ * Whether the document is an object or an array is decided by its first token.
+ *
+ * Values are the same types JSONTokener produces: Integer, Long or Double for
+ * numbers, Boolean, String and JSONObject.NULL.
+ *
+ * Responses still become a JSONObject tree rather than being decoded straight into
+ * the classes that use them. A cloud response arrives through MQTT already parsed,
+ * and each command's listener reads its own fields, so the tree is what every path
+ * has in common. SessionSnapshot then pulls out the fields Session acts on.
+ */
+final class JsonStreamParser {
+    private final InputStream in;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+
+    // Bytes consumed before the current buffer, for error messages
+    private long offset;
+
+    // Reused for each string and number
+    private final StringBuilder chars = new StringBuilder();
+
+    private JsonStreamParser(InputStream in, byte[] buffer) {
+        this.in = in;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Parse a JSON document, returning a JSONObject or a JSONArray.
+     */
+    static Object parse(InputStream in) throws IOException, JSONException {
+        BufferPool pool = BufferPool.getSharedPool();
+        ByteBuffer buffer = pool.acquire();
+        try {
+            return new JsonStreamParser(in, buffer.array()).parseDocument();
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private Object parseDocument() throws IOException, JSONException {
+        int c = skipWhitespace();
+        Object result;
+        if (c == '{') {
+            result = readObject();
+        } else if (c == '[') {
+            result = readArray();
+        } else {
+            throw syntaxError(c < 0 ? "Empty JSON document" : "A JSON document must begin with '{' or '['");
+        }
+
+        if (skipWhitespace() >= 0) {
+            throw syntaxError("Unexpected data after the JSON document");
+        }
+        return result;
+    }
+
+    /**
+     * Parse a JSON document that must be an object.
+     */
+    static JSONObject parseObject(InputStream in) throws IOException, JSONException {
+        Object result = parse(in);
+        if (!(result instanceof JSONObject)) {
+            throw new JSONException("A JSONObject text must begin with '{'");
+        }
+        return (JSONObject)result;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit) {
+            offset += limit;
+            pos = 0;
+            limit = in.read(buffer);
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    private void unread() {
+        pos--;
+    }
+
+    // Return the next character that isn't whitespace, or -1 at the end of the stream
+    private int skipWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at " + (offset + pos));
+    }
+
+    private Object readValue() throws IOException {
+        int c = skipWhitespace();
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expectWord("rue");
+                return Boolean.TRUE;
+            case 'f':
+                expectWord("alse");
+                return Boolean.FALSE;
+            case 'n':
+                expectWord("ull");
+                return JSONObject.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return readNumber(c);
+                }
+                throw syntaxError(c < 0 ? "Unexpected end of JSON" : "Unexpected character '" + (char)c + "'");
+        }
+    }
+
+    private JSONObject readObject() throws IOException {
+        JSONObject object = new JSONObject();
+
+        int c = skipWhitespace();
+        if (c == '}') {
+            return object;
+        }
+
+        while (true) {
+            if (c != '"') {
+                throw syntaxError("Expected a key");
+            }
+            String key = readString();
+
+            if (skipWhitespace() != ':') {
+                throw syntaxError("Expected ':' after key " + key);
+            }
+
+            if (object.has(key)) {
+                throw syntaxError("Duplicate key " + key);
+            }
+            object.put(key, readValue());
+
+            c = skipWhitespace();
+            if (c == '}') {
+                return object;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = skipWhitespace();
+        }
+    }
+
+    private JSONArray readArray() throws IOException {
+        JSONArray array = new JSONArray();
+
+        int c = skipWhitespace();
+        if (c == ']') {
+            return array;
+        }
+        unread();
+
+        while (true) {
+            array.put(readValue());
+
+            c = skipWhitespace();
+            if (c == ']') {
+                return array;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+        }
+    }
+
+    // Read the rest of a string, after its opening quote
+    private String readString() throws IOException {
+        chars.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return chars.toString();
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c < 0) {
+                throw syntaxError("Unterminated string");
+            } else if (c < 0x20) {
+                throw syntaxError("Control character in string");
+            } else if (c < 0x80) {
+                chars.append((char)c);
+            } else {
+                readUtf8(c);
+            }
+        }
+    }
+
+    private void readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                chars.append((char)c);
+                break;
+            case 'b':
+                chars.append('\b');
+                break;
+            case 'f':
+                chars.append('\f');
+                break;
+            case 'n':
+                chars.append('\n');
+                break;
+            case 'r':
+                chars.append('\r');
+                break;
+            case 't':
+                chars.append('\t');
+                break;
+            case 'u':
+                int value = 0;
+                for (int idx = 0; idx < 4; idx++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Illegal \\u escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                chars.append((char)value);
+                break;
+            default:
+                throw syntaxError("Illegal escape");
+        }
+    }
+
+    // Decode a multi-byte UTF-8 sequence, given its first byte
+    private void readUtf8(int first) throws IOException {
+        int codePoint;
+        int continuation;
+        if ((first & 0xe0) == 0xc0) {
+            codePoint = first & 0x1f;
+            continuation = 1;
+        } else if ((first & 0xf0) == 0xe0) {
+            codePoint = first & 0x0f;
+            continuation = 2;
+        } else if ((first & 0xf8) == 0xf0) {
+            codePoint = first & 0x07;
+            continuation = 3;
+        } else {
+            throw syntaxError("Invalid UTF-8");
+        }
+
+        for (int idx = 0; idx < continuation; idx++) {
+            int c = read();
+            if ((c & 0xc0) != 0x80) {
+                throw syntaxError("Invalid UTF-8");
+            }
+            codePoint = (codePoint << 6) | (c & 0x3f);
+        }
+
+        if (!Character.isValidCodePoint(codePoint)) {
+            throw syntaxError("Invalid UTF-8");
+        }
+        chars.appendCodePoint(codePoint);
+    }
+
+    private Object readNumber(int first) throws IOException {
+        chars.setLength(0);
+        chars.append((char)first);
+
+        boolean decimal = false;
+        while (true) {
+            int c = read();
+            if (c >= '0' && c <= '9' || c == '-' || c == '+') {
+                chars.append((char)c);
+            } else if (c == '.' || c == 'e' || c == 'E') {
+                decimal = true;
+                chars.append((char)c);
+            } else {
+                if (c >= 0) {
+                    unread();
+                }
+                break;
+            }
+        }
+
+        String number = chars.toString();
+        try {
+            if (!decimal) {
+                long value = Long.parseLong(number);
+                if (value == (int)value) {
+                    return (int)value;
+                }
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Too big for a long
+        }
+
+        try {
+            return Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number " + number);
+        }
+    }
+
+    private void expectWord(String rest) throws IOException {
+        for (int idx = 0; idx < rest.length(); idx++) {
+            if (read() != rest.charAt(idx)) {
+                throw syntaxError("Unexpected word");
+            }
+        }
+    }
+}
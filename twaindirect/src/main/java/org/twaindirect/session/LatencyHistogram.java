@@ -0,0 +1,121 @@
+package org.twaindirect.session;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values, such as durations in nanoseconds or sizes
+ * in bytes, that can be recorded from any number of threads without locking.
+ *
+ * Values are counted in buckets on a log scale: each power of two is split into
+ * subBuckets linear buckets, so a reported percentile is within about 12% of the
+ * actual value. Values below subBuckets are counted exactly.
+ */
+public class LatencyHistogram {
+    // Linear buckets per power of two. Must be a power of two.
+    private static final int subBucketBits = 3;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    // Enough buckets for any positive long
+    private static final int bucketCount = (64 - subBucketBits) * subBuckets + subBuckets;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / (double)n;
+    }
+
+    /**
+     * Return the value at a percentile - for example 99 for p99. The result is the
+     * upper bound of the bucket holding that value, capped at the largest value recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int idx = 0; idx < bucketCount; idx++) {
+            seen += buckets.get(idx);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(idx), max.get());
+            }
+        }
+
+        // Recording raced with us - everything's below the max
+        return max.get();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < subBuckets) {
+            return (int)value;
+        }
+
+        // Position of the highest bit, then the next subBucketBits bits below it
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - subBucketBits;
+        int subBucket = (int)(value >>> shift) & (subBuckets - 1);
+        return (shift + 1) * subBuckets + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < subBuckets) {
+            return index;
+        }
+
+        int shift = index / subBuckets - 1;
+        long subBucket = index % subBuckets;
+        long lowerBound = (subBuckets + subBucket) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    /**
+     * Summary of a histogram of durations in nanoseconds, in milliseconds.
+     */
+    public String toDurationString() {
+        return String.format(Locale.US, "count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                getCount(), getMean() / 1e6, getValueAtPercentile(50) / 1e6,
+                getValueAtPercentile(99) / 1e6, getMax() / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "count=%d mean=%.1f p50=%d p99=%d max=%d",
+                getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(99), getMax());
+    }
+}
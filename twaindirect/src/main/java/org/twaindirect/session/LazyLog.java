@@ -0,0 +1,184 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wraps a java.util.logging Logger so that messages cost nothing unless their level
+ * is enabled.
+ *
+ * Messages are String.format patterns, formatted only after the level check, and the
+ * fixed argument overloads avoid allocating a varargs array on the way in. Wrap
+ * JSON arguments with json() or prettyJson() so they're only serialized if the
+ * message is actually logged:
+ *
+ *      logger.finest("Request body: %s", LazyLog.prettyJson(requestBody));
+ *
+ * Configure levels and handlers on the underlying Logger as usual. Records name the
+ * class the LazyLog was created for as their source, rather than leaving
+ * java.util.logging to guess it from the stack, which would find LazyLog itself.
+ */
+public final class LazyLog {
+    private final Logger logger;
+
+    // Reported as the source class of every record
+    private final String sourceClass;
+
+    private LazyLog(Logger logger, String sourceClass) {
+        this.logger = logger;
+        this.sourceClass = sourceClass;
+    }
+
+    public static LazyLog getLog(Class<?> cls) {
+        return new LazyLog(Logger.getLogger(cls.getName()), cls.getName());
+    }
+
+    public Logger getLogger() {
+        return logger;
+    }
+
+    public boolean isLoggable(Level level) {
+        return logger.isLoggable(level);
+    }
+
+    public void log(Level level, String message) {
+        logger.logp(level, sourceClass, null, message);
+    }
+
+    public void log(Level level, String message, Throwable thrown) {
+        logger.logp(level, sourceClass, null, message, thrown);
+    }
+
+    public void log(Level level, String format, Object arg) {
+        if (logger.isLoggable(level)) {
+            logger.logp(level, sourceClass, null, String.format(Locale.US, format, arg));
+        }
+    }
+
+    public void log(Level level, String format, Object arg1, Object arg2) {
+        if (logger.isLoggable(level)) {
+            logger.logp(level, sourceClass, null, String.format(Locale.US, format, arg1, arg2));
+        }
+    }
+
+    public void log(Level level, String format, Object arg1, Object arg2, Object arg3) {
+        if (logger.isLoggable(level)) {
+            logger.logp(level, sourceClass, null, String.format(Locale.US, format, arg1, arg2, arg3));
+        }
+    }
+
+    public void severe(String message) {
+        log(Level.SEVERE, message);
+    }
+
+    public void warning(String message) {
+        log(Level.WARNING, message);
+    }
+
+    public void warning(String format, Object arg) {
+        log(Level.WARNING, format, arg);
+    }
+
+    public void warning(String format, Object arg1, Object arg2) {
+        log(Level.WARNING, format, arg1, arg2);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public void info(String format, Object arg) {
+        log(Level.INFO, format, arg);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        log(Level.INFO, format, arg1, arg2);
+    }
+
+    public void fine(String message) {
+        log(Level.FINE, message);
+    }
+
+    public void fine(String format, Object arg) {
+        log(Level.FINE, format, arg);
+    }
+
+    public void fine(String format, Object arg1, Object arg2) {
+        log(Level.FINE, format, arg1, arg2);
+    }
+
+    public void fine(String format, Object arg1, Object arg2, Object arg3) {
+        log(Level.FINE, format, arg1, arg2, arg3);
+    }
+
+    public void finer(String message) {
+        log(Level.FINER, message);
+    }
+
+    public void finer(String format, Object arg) {
+        log(Level.FINER, format, arg);
+    }
+
+    public void finer(String format, Object arg1, Object arg2) {
+        log(Level.FINER, format, arg1, arg2);
+    }
+
+    public void finest(String message) {
+        log(Level.FINEST, message);
+    }
+
+    public void finest(String format, Object arg) {
+        log(Level.FINEST, format, arg);
+    }
+
+    /**
+     * Argument that serializes a JSONObject on one line, only when it's formatted.
+     */
+    public static Object json(JSONObject json) {
+        return new LazyJson(json, 0);
+    }
+
+    /**
+     * Argument that pretty prints a JSONObject, only when it's formatted.
+     */
+    public static Object prettyJson(JSONObject json) {
+        return new LazyJson(json, 2);
+    }
+
+    /**
+     * Argument that decodes UTF-8 bytes, only when it's formatted.
+     */
+    public static Object utf8(final byte[] bytes) {
+        return new Object() {
+            @Override
+            public String toString() {
+                if (bytes == null) {
+                    return "null";
+                }
+                return new String(bytes, Charset.forName("UTF-8"));
+            }
+        };
+    }
+
+    private static final class LazyJson {
+        private final JSONObject json;
+        private final int indent;
+
+        LazyJson(JSONObject json, int indent) {
+            this.json = json;
+            this.indent = indent;
+        }
+
+        @Override
+        public String toString() {
+            if (json == null) {
+                return "null";
+            }
+            return indent == 0 ? json.toString() : json.toString(indent);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.twaindirect.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ScannerTransport that hands each request straight to an in-process Handler instead
+ * of sending it over the network. There are no sockets, no HTTP parsing and no
+ * connection pool, so the session, download and image assembly code can be measured
+ * and tested without any network cost.
+ *
+ * Like BlockingTransport, the handler runs on the calling thread and the callback is
+ * called before send returns.
+ *
+ * Usage:
+ *      Session session = new Session(URI.create("http://scanner/"), null);
+ *      session.setTransport(new LoopbackTransport(handler));
+ */
+public class LoopbackTransport implements ScannerTransport {
+    /**
+     * Answers requests in place of a scanner.
+     */
+    public interface Handler {
+        /**
+         * Return the response to a request. Throw an IOException to fail the request
+         * as a connection error would.
+         */
+        TransportResponse handle(TransportRequest request) throws IOException;
+    }
+
+    private final Handler handler;
+
+    public LoopbackTransport(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void send(TransportRequest request, AsyncResult<TransportResponse> callback) {
+        TransportResponse response;
+        try {
+            response = handler.handle(request);
+        } catch (IOException e) {
+            callback.onError(e);
+            return;
+        }
+
+        try {
+            callback.onResult(response);
+        } finally {
+            response.close();
+        }
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // No connections to close
+    }
+
+    /**
+     * Make a response for a Handler to return.
+     * @param statusCode HTTP status code, for example 200
+     * @param headers Response headers, or null for none
+     * @param body Response body, or null for none
+     */
+    public static TransportResponse response(int statusCode, Map<String, String> headers, byte[] body) {
+        return new Response(statusCode, headers, body);
+    }
+
+    private static class Response implements TransportResponse {
+        private final int statusCode;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Response(int statusCode, Map<String, String> headers, byte[] body) {
+            this.statusCode = statusCode;
+            if (headers != null) {
+                // Header names are case insensitive
+                Map<String, String> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                sorted.putAll(headers);
+                this.headers = sorted;
+            } else {
+                this.headers = Collections.emptyMap();
+            }
+            this.body = body != null ? body : new byte[0];
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public String getStatusLine() {
+            return "HTTP/1.1 " + statusCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package org.twaindirect.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Single pass reader for the multipart/mixed body returned by readImageBlock.
+ *
+ * The response has an application/json part with the metadata, and an application/pdf
+ * part with the image data. Parts are read in order straight off the response stream:
+ * call nextPart() to move to the next part and read its headers, then either readBody()
+ * to get a (small) part in memory, or copyBody() to stream it to its destination.
+ *
+ * When a part has a Content-Length header we copy exactly that many bytes. Otherwise we
+ * scan for the boundary delimiter.
+ */
+class MultipartReader {
+    private static final int bufferSize = 64 * 1024;
+
+    private final InputStream inputStream;
+    private final byte[] buffer;
+    private int bufferPos;
+    private int bufferLimit;
+
+    // The boundary, without the leading "--"
+    private String boundary;
+
+    // CRLF + "--" + boundary, which terminates a part's body
+    private byte[] delimiter;
+
+    // KMP failure table for delimiter
+    private int[] delimiterFailure;
+
+    // Headers of the current part, keyed by lowercase header name
+    private final Map<String, String> headers = new HashMap<>();
+
+    // Have we read the current part's body yet?
+    private boolean bodyConsumed = true;
+
+    // Have we seen the closing boundary?
+    private boolean finished;
+
+    /**
+     * @param inputStream The response body
+     * @param boundary The boundary from the Content-Type header, or null to take it from
+     *                 the first boundary line in the body.
+     */
+    MultipartReader(InputStream inputStream, String boundary) {
+        this(inputStream, boundary, new byte[bufferSize]);
+    }
+
+    MultipartReader(InputStream inputStream) {
+        this(inputStream, null);
+    }
+
+    /**
+     * @param buffer Buffer to read the response into, for example from a BufferPool.
+     *               It's in use until the response has been read.
+     */
+    MultipartReader(InputStream inputStream, String boundary, byte[] buffer) {
+        this.inputStream = inputStream;
+        this.buffer = buffer;
+        if (boundary != null) {
+            setBoundary(boundary);
+        }
+    }
+
+    /**
+     * Move to the next part and read its headers.
+     * @return false if there are no more parts
+     */
+    boolean nextPart() throws IOException {
+        if (finished) {
+            return false;
+        }
+
+        if (delimiter == null) {
+            // Skip the preamble, and learn the boundary from the first delimiter line
+            String line;
+            do {
+                line = readLine();
+                if (line == null) {
+                    throw new IOException("Multipart body has no boundary");
+                }
+            } while (!line.startsWith("--"));
+            setBoundary(line.substring(2).trim());
+        } else if (!bodyConsumed) {
+            // Skip the rest of the current part
+            copyBody(null);
+        }
+
+        if (finished) {
+            return false;
+        }
+
+        headers.clear();
+        String line;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                headers.put(name, line.substring(colon + 1).trim());
+            }
+        }
+
+        if (line == null) {
+            throw new IOException("Unexpected end of multipart body in part headers");
+        }
+
+        bodyConsumed = false;
+        return true;
+    }
+
+    /**
+     * Return the value of a header of the current part, or null.
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Return the content type of the current part, or an empty string if it has none.
+     */
+    String getContentType() {
+        String contentType = getHeader("Content-Type");
+        return contentType == null ? "" : contentType;
+    }
+
+    /**
+     * Return the Content-Length of the current part, or -1 if it wasn't specified.
+     */
+    long getContentLength() {
+        String contentLength = getHeader("Content-Length");
+        if (contentLength == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read the body of the current part into memory.
+     */
+    byte[] readBody() throws IOException {
+        long contentLength = getContentLength();
+        ByteArrayOutputStream bodyStream = new ByteArrayOutputStream(contentLength > 0 ? (int)contentLength : 1024);
+        copyBody(bodyStream);
+        return bodyStream.toByteArray();
+    }
+
+    /**
+     * Copy the body of the current part to out, and position the reader at the next part.
+     * @param out Destination, or null to discard the body.
+     * @return The number of bytes in the body
+     */
+    long copyBody(OutputStream out) throws IOException {
+        if (bodyConsumed) {
+            throw new IllegalStateException("Part body has already been read");
+        }
+        bodyConsumed = true;
+
+        long contentLength = getContentLength();
+        long length;
+        if (contentLength >= 0) {
+            copyExactly(out, contentLength);
+            skipToDelimiterLine();
+            length = contentLength;
+        } else {
+            length = copyUntilDelimiter(out);
+        }
+
+        // The delimiter is followed by "--" if this was the last part
+        String rest = readLine();
+        if (rest == null || rest.startsWith("--")) {
+            finished = true;
+        }
+
+        return length;
+    }
+
+    private void setBoundary(String boundary) {
+        this.boundary = boundary;
+        String delimiterString = "\r\n--" + boundary;
+        delimiter = new byte[delimiterString.length()];
+        for (int idx = 0; idx < delimiter.length; idx++) {
+            delimiter[idx] = (byte)delimiterString.charAt(idx);
+        }
+
+        delimiterFailure = new int[delimiter.length];
+        int k = 0;
+        for (int idx = 1; idx < delimiter.length; idx++) {
+            while (k > 0 && delimiter[idx] != delimiter[k]) {
+                k = delimiterFailure[k - 1];
+            }
+            if (delimiter[idx] == delimiter[k]) {
+                k++;
+            }
+            delimiterFailure[idx] = k;
+        }
+    }
+
+    /**
+     * Make sure there's at least one byte in the buffer.
+     * @return false at end of stream
+     */
+    private boolean fill() throws IOException {
+        if (bufferPos < bufferLimit) {
+            return true;
+        }
+
+        int count = inputStream.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+
+        bufferPos = 0;
+        bufferLimit = count;
+        return true;
+    }
+
+    /**
+     * Read a line terminated by LF or CRLF, without the terminator.
+     * Returns null at end of stream.
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        boolean readAnything = false;
+        while (fill()) {
+            readAnything = true;
+            int b = buffer[bufferPos++] & 0xff;
+            if (b == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char)b);
+        }
+        return readAnything ? line.toString() : null;
+    }
+
+    private void copyExactly(OutputStream out, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart body, expected " + remaining + " more bytes");
+            }
+            int chunk = (int)Math.min(remaining, bufferLimit - bufferPos);
+            if (out != null) {
+                out.write(buffer, bufferPos, chunk);
+            }
+            bufferPos += chunk;
+            remaining -= chunk;
+        }
+    }
+
+    /**
+     * After a body read using Content-Length, skip the CRLF (and anything else) up to and
+     * including the boundary, leaving the rest of the delimiter line to be read.
+     */
+    private void skipToDelimiterLine() throws IOException {
+        String marker = "--" + boundary;
+        for (;;) {
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart body looking for boundary");
+            }
+
+            // Peek at the start of the next line without consuming it
+            if (startsWith(marker)) {
+                bufferPos += marker.length();
+                return;
+            }
+
+            if (readLine() == null) {
+                throw new IOException("Unexpected end of multipart body looking for boundary");
+            }
+        }
+    }
+
+    /**
+     * Return whether the buffered data starts with marker, reading more if required.
+     * Only used for the short boundary marker, which always fits in the buffer.
+     */
+    private boolean startsWith(String marker) throws IOException {
+        int length = marker.length();
+        if (bufferLimit - bufferPos < length) {
+            // Compact and top up the buffer
+            System.arraycopy(buffer, bufferPos, buffer, 0, bufferLimit - bufferPos);
+            bufferLimit -= bufferPos;
+            bufferPos = 0;
+            while (bufferLimit < length) {
+                int count = inputStream.read(buffer, bufferLimit, buffer.length - bufferLimit);
+                if (count <= 0) {
+                    return false;
+                }
+                bufferLimit += count;
+            }
+        }
+
+        for (int idx = 0; idx < length; idx++) {
+            if (buffer[bufferPos + idx] != (byte)marker.charAt(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the body to out until we find the delimiter, consuming the delimiter.
+     * Runs of data are written directly from the buffer; bytes that might be the start of
+     * the delimiter are held back until we know whether they are.
+     */
+    private long copyUntilDelimiter(OutputStream out) throws IOException {
+        long length = 0;
+        int matched = 0;
+        while (true) {
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart body looking for boundary");
+            }
+
+            int runStart = bufferPos;
+            while (bufferPos < bufferLimit) {
+                byte b = buffer[bufferPos];
+                if (matched == 0 && b != delimiter[0]) {
+                    bufferPos++;
+                    continue;
+                }
+
+                // Write out the data preceding this byte
+                length += write(out, buffer, runStart, bufferPos - runStart);
+
+                while (matched > 0 && b != delimiter[matched]) {
+                    // Bytes we held back as a possible delimiter turned out to be data
+                    int fallback = delimiterFailure[matched - 1];
+                    length += write(out, delimiter, 0, matched - fallback);
+                    matched = fallback;
+                }
+
+                bufferPos++;
+                if (b == delimiter[matched]) {
+                    matched++;
+                    if (matched == delimiter.length) {
+                        return length;
+                    }
+                    runStart = bufferPos;
+                } else {
+                    runStart = bufferPos - 1;
+                }
+            }
+
+            length += write(out, buffer, runStart, bufferPos - runStart);
+        }
+    }
+
+    private static int write(OutputStream out, byte[] data, int offset, int count) throws IOException {
+        if (out != null && count > 0) {
+            out.write(data, offset, count);
+        }
+        return count;
+    }
+}
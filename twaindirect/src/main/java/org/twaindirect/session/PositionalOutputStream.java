@@ -0,0 +1,45 @@
+package org.twaindirect.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * OutputStream that writes into a file starting at a given offset, using positional
+ * FileChannel writes. Several of these can write different regions of the same file
+ * at once, which is how BlockDownloader writes an image's parts straight into place.
+ *
+ * The file is created if it doesn't exist, and never truncated.
+ */
+final class PositionalOutputStream extends OutputStream {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long position;
+
+    PositionalOutputStream(File file, long offset) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.channel = this.file.getChannel();
+        this.position = offset;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,32 @@
+package org.twaindirect.session;
+
+/**
+ * Sends HTTP requests for HttpJsonRequest, HttpBlockRequest and CloudBlockRequest.
+ *
+ * BlockingTransport, the default, sends each request on the calling thread, so the
+ * number of requests in flight is bounded by the number of threads making them.
+ * AsyncTransport uses non-blocking I/O on a small number of threads, and calls back
+ * when the response arrives. LoopbackTransport answers requests in process, without
+ * going near the network.
+ */
+public interface ScannerTransport {
+    /**
+     * Send a request. The callback receives the response, and must close it once it has
+     * read what it needs, or the reason the request failed.
+     *
+     * A blocking transport calls back on the calling thread before send returns. An
+     * asynchronous one returns straight away and calls back on a thread of its own.
+     */
+    void send(TransportRequest request, AsyncResult<TransportResponse> callback);
+
+    /**
+     * Returns true if send returns before the response arrives.
+     */
+    boolean isAsync();
+
+    /**
+     * Close the transport's connections. It can still be used afterwards - connections
+     * are created again on demand.
+     */
+    void close();
+}
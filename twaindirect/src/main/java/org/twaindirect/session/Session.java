@@ -14,12 +14,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * A TWAIN Direct client uses the Session object to scan images.
@@ -48,17 +47,20 @@ import java.util.logging.Logger;
 
 public class Session {
 
-    private static final Logger logger = Logger.getLogger(Session.class.getName());
+    private static final LazyLog logger = LazyLog.getLog(Session.class);
 
     // Thread that manages the waitForEvents long-poll
     private Thread eventListenerThread;
 
-    private boolean stopping;
+    // The session's state fields are volatile, and changed by updateSession, which is
+    // synchronized: responses to commands and waitForEvents can arrive on different
+    // threads, and with eventPipelining events are processed on eventExecutor.
+    private volatile boolean stopping;
     private File tempDir;
 
     // Set when the client calls stopCapturing to indicate we should keep the
     // session open even when the scanner stops capturing.
-    private boolean paused;
+    private volatile boolean paused;
 
     // Map of block number to the associated ImageBlockInfo for files we've received.
     // The file data is in tempDir at the filename generated by ImageBlockInfo.partFileName()
@@ -94,6 +96,22 @@ public class Session {
      */
     private static final int numWaitForEventsRetriesAllowed = 3;
 
+    /**
+     * After a failed waitForEvents, wait this long before retrying, in milliseconds.
+     * Doubles with each successive failure, up to maxWaitForEventsBackoff.
+     */
+    private static final int waitForEventsBackoff = 1000;
+    private static final int maxWaitForEventsBackoff = 8000;
+
+    /**
+     * When set, the events from a waitForEvents response are processed on eventExecutor,
+     * and the next waitForEvents is sent without waiting for them to be processed.
+     */
+    private boolean eventPipelining;
+
+    // Processes events when eventPipelining is set
+    private ExecutorService eventExecutor;
+
     private ExecutorService executor = Executors.newFixedThreadPool(1);
 
     public enum State {
@@ -117,35 +135,58 @@ public class Session {
         staple
     }
 
-    private State state;
+    private volatile State state;
 
     // The last value for results.session.status.success
-    private boolean sessionStatusSuccess;
+    private volatile boolean sessionStatusSuccess;
 
     // The last session value for session.status.detected
-    private StatusDetected sessionStatusDetected;
+    private volatile StatusDetected sessionStatusDetected;
 
     private String privetToken;
     private String sessionId;
-    private int sessionRevision;
+    private volatile int sessionRevision;
     private JSONObject infoExResult;
     private SessionListener sessionListener;
-    private boolean doneCapturing;
-    private boolean imageBlocksDrained;
+    private volatile boolean doneCapturing;
+    private volatile boolean imageBlocksDrained;
     private BlockDownloader blockDownloader;
+    private BlockDownloaderConfig blockDownloaderConfig = new BlockDownloaderConfig();
+
+    // Receives timing events, if set
+    private SessionMetrics metrics;
 
     private final CloudEventBroker cloudEventBroker;
     private final CloudConnection cloudConnection;
 
+    /**
+     * HttpClients used for every request in this session, including image block downloads.
+     * Keeping them around lets us reuse connections to the scanner. A local session creates
+     * its own, and closes them when the session is closed. A cloud session shares
+     * CloudConnection's, and leaves them open.
+     */
+    private final HttpClientPool httpClientPool;
+
+    // Sends every request in this session. A BlockingTransport on httpClientPool unless
+    // setTransport is called.
+    private ScannerTransport transport;
+
+    // Did we create transport and its pool, so it's ours to close?
+    private boolean ownsTransport;
+
     /**
      * Prepare a TWAIN Local session
      * @param url For example, https://myscanner.local:34034
      * @param scannerIp The IP address that "myscanner.local" resolves to, for mDNS name resolution.
      */
     public Session(URI url, String scannerIp) {
+        this.url = url;
         this.scannerIp = scannerIp;
         this.cloudEventBroker = null;
         this.cloudConnection = null;
+        this.httpClientPool = new HttpClientPool();
+        this.transport = new BlockingTransport(httpClientPool);
+        this.ownsTransport = true;
         reset();
 
         logger.info("Local session startup");
@@ -158,6 +199,8 @@ public class Session {
         this.url = scannerUrl;
         this.cloudEventBroker = cloudEventBroker;
         this.cloudConnection = cloudConnection;
+        this.httpClientPool = cloudConnection.getHttpClientPool();
+        this.transport = new BlockingTransport(httpClientPool);
         reset();
 
         logger.info("Cloud session startup");
@@ -194,6 +237,56 @@ public class Session {
         this.tempDir = tempDir;
     }
 
+    /**
+     * Enable or disable event pipelining. When enabled, the next waitForEvents request is
+     * sent as soon as a response arrives, while the events in that response are processed
+     * on a separate thread. Takes effect the next time a session is opened.
+     * @param eventPipelining
+     */
+    public void setEventPipelining(boolean eventPipelining) {
+        this.eventPipelining = eventPipelining;
+    }
+
+    /**
+     * Set the parameters used to download image blocks. Takes effect the next
+     * time startCapturing is called.
+     * @param config
+     */
+    public void setBlockDownloaderConfig(BlockDownloaderConfig config) {
+        this.blockDownloaderConfig = config;
+    }
+
+    /**
+     * Set the transport used to send requests to the scanner, for example an AsyncTransport
+     * so that image block downloads don't each hold a thread while they wait. Set before
+     * opening the session.
+     *
+     * The caller still owns the transport, and closes it once the session is finished
+     * with. It can be shared by several sessions.
+     * @param transport
+     */
+    public void setTransport(ScannerTransport transport) {
+        if (ownsTransport) {
+            // Nothing else uses the transport we created
+            this.transport.close();
+            ownsTransport = false;
+        }
+        this.transport = transport;
+    }
+
+    /**
+     * Set the metrics implementation that receives timing events for commands, block
+     * downloads and image delivery, or null for none. Set before opening the session.
+     * @param metrics
+     */
+    public void setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    SessionMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Get the scanner's state, as reported by the scanner when we last heard from it,
      * either asynchronously or in the response to a request.
@@ -242,6 +335,8 @@ public class Session {
         request.listener = listener;
         request.cloudEventBroker = cloudEventBroker;
         request.cloudConnection = cloudConnection;
+        request.transport = transport;
+        request.metrics = metrics;
 
         // Must be included, but empty
         request.headers.put("X-Privet-Token", "");
@@ -301,21 +396,20 @@ public class Session {
             try {
                 // Create and send the createSession request
                 logger.info("Sending createSession");
-                String commandId = UUID.randomUUID().toString();
-                JSONObject body = new JSONObject();
-                body.put("kind", "twainlocalscanner");
-                body.put("method", "createSession");
-                body.put("commandId", commandId);
+                String commandId = CommandEncoder.newCommandId();
 
                 HttpJsonRequest request = new HttpJsonRequest();
                 request.url = endpoint;
                 request.method = "POST";
                 request.commandId = commandId;
-                request.requestBody = body;
+                request.command = "createSession";
+                request.requestBytes = CommandEncoder.encode("createSession", commandId, null);
                 request.headers.put("X-Privet-Token", privetToken);
                 request.ipaddr = scannerIp;
                 request.cloudConnection = cloudConnection;
                 request.cloudEventBroker = cloudEventBroker;
+                request.transport = transport;
+                request.metrics = metrics;
 
                 request.listener = new AsyncResult<JSONObject>() {
                     @Override
@@ -406,14 +500,32 @@ public class Session {
 
 
     /**
-     * Close the sesssion.
+     * Close the sesssion. The downloads in progress are finished, and their images
+     * delivered and released, before the scanner is told to close the session.
      *
      * @param listener
      */
     public void close(final AsyncResponse listener) {
-        try {
-            stopping = true;
+        stopping = true;
+
+        BlockDownloader downloader = blockDownloader;
+        if (downloader == null) {
+            sendCloseSession(listener);
+            return;
+        }
 
+        // The final releaseImageBlocks is queued before closeSession, so it's sent
+        // before the transport is closed
+        downloader.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                sendCloseSession(listener);
+            }
+        });
+    }
+
+    private void sendCloseSession(final AsyncResponse listener) {
+        try {
             // Create and send the createSession request
             JSONObject params = new JSONObject();
             params.put("sessionId", sessionId);
@@ -440,6 +552,8 @@ public class Session {
                     } catch (JSONException | SessionException e) {
                         listener.onError(e);
                         return;
+                    } finally {
+                        closeHttpClients();
                     }
 
                     listener.onSuccess();
@@ -447,6 +561,7 @@ public class Session {
 
                 @Override
                 public void onError(Exception e) {
+                    closeHttpClients();
                     listener.onError(e);
                 }
             };
@@ -525,7 +640,10 @@ public class Session {
             return;
         }
 
-        blockDownloader = new BlockDownloader(this, tempDir, sessionListener, cloudEventBroker);
+        if (blockDownloader != null) {
+            blockDownloader.shutdown();
+        }
+        blockDownloader = new BlockDownloader(this, tempDir, sessionListener, cloudEventBroker, blockDownloaderConfig);
 
         files.clear();
 
@@ -586,7 +704,7 @@ public class Session {
         request.listener = new AsyncResult<JSONObject>() {
             @Override
             public void onResult(JSONObject result) {
-                logger.log(Level.FINE, "Event received: " + result.toString());
+                logger.fine("Event received: %s", LazyLog.json(result));
 
                 try {
                     JSONObject results = result.getJSONObject("results");
@@ -599,23 +717,46 @@ public class Session {
                     // We received a successful response, so reset the retry count.
                     waitForEventsRetryCount = 0;
 
-                    // Process the events we just received
+                    // Collect the events we haven't already seen
                     JSONArray events = results.getJSONArray("events");
+                    final List<SessionSnapshot> sessions = new ArrayList<>(events.length());
                     for (int i=0; i<events.length(); i++) {
                         JSONObject event = events.getJSONObject(i);
-                        JSONObject session = event.getJSONObject("session");
-                        int revision = session.getInt("revision");
-                        if (revision < sessionRevision) {
+                        SessionSnapshot session;
+                        try {
+                            session = SessionSnapshot.fromJSON(event.getJSONObject("session"));
+                        } catch (SessionException e) {
+                            logger.severe(e.toString());
+                            waitForEventsRetryCount++;
+                            continue;
+                        }
+
+                        if (session.revision < sessionRevision) {
                             // Ignore as we've already seen this revision
                             continue;
                         }
 
-                        updateSession(session);
+                        sessions.add(session);
                     }
 
-                } catch (SessionException e) {
-                    logger.severe(e.toString());
-                    waitForEventsRetryCount++;
+                    if (eventExecutor != null) {
+                        // Note the new revision now, so the next waitForEvents can go
+                        // out while these events are processed
+                        synchronized(Session.this) {
+                            for (SessionSnapshot session : sessions) {
+                                sessionRevision = Math.max(sessionRevision, session.revision);
+                            }
+                        }
+
+                        eventExecutor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                processEvents(sessions);
+                            }
+                        });
+                    } else {
+                        processEvents(sessions);
+                    }
                 } catch (JSONException e) {
                     logger.severe(e.toString());
                     waitForEventsRetryCount++;
@@ -645,6 +786,15 @@ public class Session {
         return shouldContinue[0];
     }
 
+    /**
+     * Apply the session updates from a waitForEvents response, in order.
+     */
+    private void processEvents(List<SessionSnapshot> sessions) {
+        for (SessionSnapshot session : sessions) {
+            updateSession(session);
+        }
+    }
+
     /**
      * Notify the device that we're done with this block.
      * @param fromBlock
@@ -663,26 +813,30 @@ public class Session {
             return;
         }
 
-        logger.info(String.format("Releasing blocks from %s to %s", fromBlock, toBlock));
+        logger.info("Releasing blocks from %s to %s", fromBlock, toBlock);
 
+        final long startTime = System.nanoTime();
         HttpJsonRequest request = createJsonRequest("releaseImageBlocks", params);
         request.listener = new AsyncResult<JSONObject>() {
             @Override
             public void onResult(JSONObject result) {
+                if (metrics != null) {
+                    metrics.blocksReleased(fromBlock, toBlock, System.nanoTime() - startTime);
+                }
+
                 try {
                     JSONObject results = result.getJSONObject("results");
                     if (!results.getBoolean("success")) {
-                        logger.warning("Delete failed: " + results.toString());
+                        logger.warning("Delete failed: %s", LazyLog.json(results));
                         return;
                     }
 
-                    logger.info(String.format("Released blocks from %s to %s", fromBlock, toBlock));
-
-                    logger.fine(String.format("releaseImageBlocks response: %s", results));
+                    logger.info("Released blocks from %s to %s", fromBlock, toBlock);
+                    logger.fine("releaseImageBlocks response: %s", LazyLog.json(results));
 
                     updateSession(results.getJSONObject("session"));
 
-                    if (doneCapturing && imageBlocksDrained && !paused) {
+                    if (doneCapturing && imageBlocksDrained && !paused && !stopping) {
                         close(new AsyncResponse() {
                             @Override
                             public void onSuccess() {
@@ -722,29 +876,19 @@ public class Session {
      * @return
      */
     HttpJsonRequest createJsonRequest(String method, JSONObject params) {
-        // Create and send the createSession request
-        String commandId = UUID.randomUUID().toString();
-        JSONObject body = new JSONObject();
-        try {
-            body.put("kind", "twainlocalscanner");
-            body.put("method", method);
-            body.put("commandId", commandId);
-            if (params != null) {
-                body.put("params", params);
-            }
-        } catch (JSONException e) {
-            logger.severe(e.toString());
-            return null;
-        }
+        String commandId = CommandEncoder.newCommandId();
 
         HttpJsonRequest request = new HttpJsonRequest();
         request.cloudConnection = cloudConnection;
         request.cloudEventBroker = cloudEventBroker;
+        request.transport = transport;
+        request.metrics = metrics;
         request.url = endpoint;
         request.commandId = commandId;
         request.ipaddr = scannerIp;
         request.method = "POST";
-        request.requestBody = body;
+        request.command = method;
+        request.requestBytes = CommandEncoder.encode(method, commandId, params);
         request.headers.put("X-Privet-Token", privetToken);
         return request;
     }
@@ -755,26 +899,14 @@ public class Session {
      * @return
      */
     HttpBlockRequest createBlockRequest(JSONObject params) {
-        // Create and send the createSession request
-        JSONObject body = new JSONObject();
-        String commandId = UUID.randomUUID().toString();
-        try {
-            body.put("kind", "twainlocalscanner");
-            body.put("method", "readImageBlock");
-            body.put("commandId", commandId);
-            if (params != null) {
-                body.put("params", params);
-            }
-        } catch (JSONException e) {
-            logger.severe(e.toString());
-            return null;
-        }
+        String commandId = CommandEncoder.newCommandId();
 
         HttpBlockRequest request = new HttpBlockRequest();
         request.url = endpoint;
         request.commandId = commandId;
         request.ipaddr = scannerIp;
-        request.requestBody = body;
+        request.transport = transport;
+        request.requestBytes = CommandEncoder.encode("readImageBlock", commandId, params);
         request.headers.put("X-Privet-Token", privetToken);
         return request;
     }
@@ -788,14 +920,37 @@ public class Session {
         // Create and send the createSession request
         CloudBlockRequest request = new CloudBlockRequest(cloudConnection);
         request.url = URIUtils.pathToURI(blockUrl);
+        request.transport = transport;
         request.headers.put("X-Privet-Token", privetToken);
         return request;
     }
 
+    /**
+     * Close the connections to the scanner once the requests already queued (like the
+     * final releaseImageBlocks) have been sent. The clients are recreated if the session
+     * is opened again.
+     *
+     * Only the transport we created is closed. A cloud session's clients belong to
+     * CloudConnection, and one set with setTransport belongs to the caller.
+     */
+    private void closeHttpClients() {
+        if (!ownsTransport) {
+            return;
+        }
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                logger.fine("Closing HttpClients");
+                transport.close();
+            }
+        });
+    }
+
     /**
      * Reset internal state
      */
-    private void reset() {
+    private synchronized void reset() {
         doneCapturing = false;
         imageBlocksDrained = false;
         state = State.noSession;
@@ -804,6 +959,9 @@ public class Session {
         sessionStatusDetected = null;
         waitForEventsRetryCount = 0;
         paused = false;
+        if (blockDownloader != null) {
+            blockDownloader.shutdown();
+        }
         blockDownloader = null;
     }
 
@@ -812,59 +970,34 @@ public class Session {
      * @param session
      */
     private void updateSession(JSONObject session) throws JSONException, SessionException {
+        logger.fine("updateSession: %s", LazyLog.json(session));
+        updateSession(SessionSnapshot.fromJSON(session));
+    }
 
-        logger.fine(String.format("updateSession: %s", session.toString()));
-
-        // typical: { state=readyToDownload, status={detected:nominal,success:true}, revision=1, sessionId=guid}
+    /**
+     * Update local state from a decoded session object. Synchronized, so updates from
+     * different threads are applied, and reported to the SessionListener, one at a time.
+     */
+    private synchronized void updateSession(SessionSnapshot session) {
         if (sessionId == null) {
-            sessionId = session.getString("sessionId");
+            sessionId = session.sessionId;
         }
 
-        if (session.has("doneCapturing")) {
-            doneCapturing = session.getBoolean("doneCapturing");
+        if (session.doneCapturing != null) {
+            doneCapturing = session.doneCapturing;
         }
 
-        if (session.has("imageBlocksDrained")) {
-            imageBlocksDrained = session.getBoolean("imageBlocksDrained");
+        if (session.imageBlocksDrained != null) {
+            imageBlocksDrained = session.imageBlocksDrained;
         }
 
         // Update the revision
-        sessionRevision = Math.max(sessionRevision, session.getInt("revision"));
-
-        State newState = null;
-        switch (session.getString("state")) {
-            case "ready":
-                newState = State.ready;
-                break;
-            case "capturing":
-                newState = State.capturing;
-                break;
-            case "closed":
-                newState = State.closed;
-                break;
-            case "draining":
-                newState = State.draining;
-                break;
-            case "noSession":
-                newState = State.noSession;
-                break;
-            default:
-                throw new SessionException("Unknown state in session " + session.toString());
-        }
+        sessionRevision = Math.max(sessionRevision, session.revision);
 
-        if (session.has("imageBlocks")) {
-            synchronized(this) {
-                JSONArray ibready = session.getJSONArray("imageBlocks");
-                if (ibready != null && ibready.length() > 0) {
-                    List<Integer> imageBlocks = new ArrayList<Integer>();
-                    for (int ibidx = 0; ibidx < ibready.length(); ibidx++) {
-                        int blockNum = ibready.getInt(ibidx);
-                        imageBlocks.add(blockNum);
-                    }
+        State newState = session.state;
 
-                    blockDownloader.enqueueBlocks(imageBlocks);
-                }
-            }
+        if (session.imageBlocks.length > 0) {
+            blockDownloader.enqueueBlocks(session.imageBlocks);
         }
 
         State oldState = state;
@@ -882,24 +1015,8 @@ public class Session {
             releaseBlock(1, Integer.MAX_VALUE);
         }
 
-        boolean newSuccess = sessionStatusSuccess;
-        StatusDetected newDetected = sessionStatusDetected;
-
-        if (session.has("status")) {
-            // Update the success status
-            JSONObject status = session.getJSONObject("status");
-            if (status.has("success")) {
-                newSuccess = status.getBoolean("success");
-            }
-
-            if (status.has("detected")) {
-                String value = status.getString("detected");
-                newDetected = StatusDetected.valueOf(value);
-                if (newDetected == null) {
-                    logger.severe("Unexpected status detected: " + value);
-                }
-            }
-        }
+        boolean newSuccess = session.statusSuccess != null ? session.statusSuccess : sessionStatusSuccess;
+        StatusDetected newDetected = session.statusDetected != null ? session.statusDetected : sessionStatusDetected;
 
         if (newSuccess != sessionStatusSuccess || newDetected != sessionStatusDetected) {
             sessionStatusSuccess = newSuccess;
@@ -909,6 +1026,16 @@ public class Session {
     }
 
     private void startEventListener() {
+        final ExecutorService events = eventPipelining ? Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Session-events");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+        eventExecutor = events;
+
         Runnable listener = new Runnable() {
             @Override
             public void run() {
@@ -923,13 +1050,21 @@ public class Session {
                         logger.severe(e.toString());
                     }
 
-                    // Wait one second before retrying
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        break;
+                    // Poll again straight away, unless we're recovering from an error
+                    if (waitForEventsRetryCount > 0) {
+                        int backoff = Math.min(maxWaitForEventsBackoff, waitForEventsBackoff << (waitForEventsRetryCount - 1));
+                        try {
+                            Thread.sleep(backoff);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
                     }
                 }
+
+                if (events != null) {
+                    // Let any events we've received finish processing
+                    events.shutdown();
+                }
             }
         };
 
@@ -937,4 +1072,3 @@ public class Session {
         eventListenerThread.start();
     }
 }
-
@@ -0,0 +1,66 @@
+package org.twaindirect.session;
+
+/**
+ * Receives timing events from a Session and its BlockDownloader. Register an
+ * implementation with Session.setMetrics.
+ *
+ * Times are System.nanoTime() values, and durations are in nanoseconds. Methods are
+ * called on the session's network and download threads, so implementations must be
+ * thread safe and should return quickly. HistogramSessionMetrics is a ready made
+ * implementation.
+ */
+public interface SessionMetrics {
+    /**
+     * A command finished, from sending the request to receiving the response.
+     * @param method The command, such as waitForEvents, or the URL path for requests
+     *               that aren't commands, like /infoex
+     * @param duration Round trip time
+     * @param success false if the request failed or timed out
+     */
+    void commandCompleted(String method, long duration, boolean success);
+
+    /**
+     * The scanner reported a block, and it was added to the download queue.
+     */
+    void blockQueued(int blockNum, long time);
+
+    /**
+     * A worker thread started downloading a block.
+     */
+    void blockStarted(int blockNum, long time);
+
+    /**
+     * The response to a block download started arriving.
+     */
+    void blockFirstByte(int blockNum, long time);
+
+    /**
+     * A block was downloaded and saved.
+     * @param bytes Size of the block's image data
+     */
+    void blockCompleted(int blockNum, long time, long bytes);
+
+    /**
+     * A block download failed.
+     */
+    void blockFailed(int blockNum, long time);
+
+    /**
+     * The parts of an image were joined together, ready to deliver.
+     * @param parts Number of blocks in the image
+     * @param duration Time taken to join the parts
+     */
+    void imageAssembled(int parts, long duration);
+
+    /**
+     * The SessionListener's onImageReceived returned.
+     * @param duration Time spent in onImageReceived
+     */
+    void imageDelivered(long duration);
+
+    /**
+     * A releaseImageBlocks command finished.
+     * @param duration Time from sending the release to the scanner's response
+     */
+    void blocksReleased(int fromBlock, int toBlock, long duration);
+}
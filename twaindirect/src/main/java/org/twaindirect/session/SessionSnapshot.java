@@ -0,0 +1,93 @@
+package org.twaindirect.session;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The parts of a session object from a scanner response that Session acts on,
+ * decoded once from the JSON. That's the JSONObject parsed by JsonStreamParser, or
+ * for a cloud session the one delivered by CloudEventBroker.
+ *
+ * Optional fields the scanner didn't report are null, so they leave the session's
+ * current value alone.
+ */
+class SessionSnapshot {
+    private static final LazyLog logger = LazyLog.getLog(SessionSnapshot.class);
+
+    private static final int[] noBlocks = new int[0];
+
+    public String sessionId;
+    public int revision;
+    public Session.State state;
+
+    // Image blocks the scanner has ready, in the order it listed them
+    public int[] imageBlocks = noBlocks;
+
+    public Boolean doneCapturing;
+    public Boolean imageBlocksDrained;
+
+    public Boolean statusSuccess;
+    public Session.StatusDetected statusDetected;
+
+    static SessionSnapshot fromJSON(JSONObject session) throws JSONException, SessionException {
+        SessionSnapshot snapshot = new SessionSnapshot();
+
+        // typical: { state=readyToDownload, status={detected:nominal,success:true}, revision=1, sessionId=guid}
+        snapshot.sessionId = session.optString("sessionId", null);
+        snapshot.revision = session.getInt("revision");
+        snapshot.state = parseState(session.getString("state"), session);
+
+        JSONArray imageBlocks = session.optJSONArray("imageBlocks");
+        if (imageBlocks != null && imageBlocks.length() > 0) {
+            int[] blocks = new int[imageBlocks.length()];
+            for (int idx = 0; idx < blocks.length; idx++) {
+                blocks[idx] = imageBlocks.getInt(idx);
+            }
+            snapshot.imageBlocks = blocks;
+        }
+
+        if (session.has("doneCapturing")) {
+            snapshot.doneCapturing = session.getBoolean("doneCapturing");
+        }
+
+        if (session.has("imageBlocksDrained")) {
+            snapshot.imageBlocksDrained = session.getBoolean("imageBlocksDrained");
+        }
+
+        JSONObject status = session.optJSONObject("status");
+        if (status != null) {
+            if (status.has("success")) {
+                snapshot.statusSuccess = status.getBoolean("success");
+            }
+
+            if (status.has("detected")) {
+                String value = status.getString("detected");
+                try {
+                    snapshot.statusDetected = Session.StatusDetected.valueOf(value);
+                } catch (IllegalArgumentException e) {
+                    logger.severe("Unexpected status detected: " + value);
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    private static Session.State parseState(String state, JSONObject session) throws SessionException {
+        switch (state) {
+            case "ready":
+                return Session.State.ready;
+            case "capturing":
+                return Session.State.capturing;
+            case "closed":
+                return Session.State.closed;
+            case "draining":
+                return Session.State.draining;
+            case "noSession":
+                return Session.State.noSession;
+            default:
+                throw new SessionException("Unknown state in session " + session.toString());
+        }
+    }
+}
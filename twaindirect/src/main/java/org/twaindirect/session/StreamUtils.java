@@ -3,36 +3,47 @@ package org.twaindirect.session;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 
 /**
  * Helper methods.
  */
 
 public class StreamUtils {
-    // Read a string from an inputStream and return a JSONObject
+    // Parse a JSONObject from an InputStream of UTF-8 JSON
     public static JSONObject inputStreamToJSONObject(InputStream inputStream) throws IOException, JSONException {
-        JSONObject jsonObject = new JSONObject(inputStreamToString(inputStream));
-        return jsonObject;
+        return JsonStreamParser.parseObject(inputStream);
     }
 
-    // Read a string from an InputStream
+    // Read a UTF-8 string from an InputStream
     public static String inputStreamToString(InputStream inputStream) throws IOException {
-        InputStreamReader streamReader = new InputStreamReader(inputStream);
-        BufferedReader reader = new BufferedReader(streamReader);
-        StringBuilder stringBuilder = new StringBuilder();
-        //Check if the line we are reading is not null
-        String inputLine;
-        while((inputLine = reader.readLine()) != null){
-            stringBuilder.append(inputLine);
+        Reader reader = new InputStreamReader(inputStream, "UTF-8");
+        try {
+            StringBuilder stringBuilder = new StringBuilder();
+            char[] buffer = new char[4096];
+            int len;
+            while ((len = reader.read(buffer)) != -1) {
+                stringBuilder.append(buffer, 0, len);
+            }
+            return stringBuilder.toString();
+        } finally {
+            reader.close();
         }
-        reader.close();
-        streamReader.close();
-        return stringBuilder.toString();
     }
 
-
+    // Copy everything from an InputStream to an OutputStream using the supplied buffer,
+    // and return the number of bytes copied
+    public static long copy(InputStream inputStream, OutputStream outputStream, byte[] buffer) throws IOException {
+        long total = 0;
+        int len;
+        while ((len = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
 }
@@ -0,0 +1,27 @@
+package org.twaindirect.session;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request to send with a ScannerTransport.
+ */
+public class TransportRequest {
+    // GET or POST
+    public String method = "GET";
+
+    public URI url;
+
+    // The IP address url's host resolves to, or null to use regular DNS resolution
+    public String ipaddr;
+
+    public Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    // Request body, or null for none
+    public byte[] body;
+
+    // Timeouts in milliseconds
+    public int connectTimeout = 20000;
+    public int readTimeout = 30000;
+}
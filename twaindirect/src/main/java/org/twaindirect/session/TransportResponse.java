@@ -0,0 +1,31 @@
+package org.twaindirect.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The response to a TransportRequest. Close it when done, so the connection can be
+ * reused.
+ */
+public interface TransportResponse {
+    int getStatusCode();
+
+    // The status line, for error messages
+    String getStatusLine();
+
+    /**
+     * The first header with this name, or null if there isn't one.
+     */
+    String getHeader(String name);
+
+    /**
+     * The response body. Empty if the response doesn't have one.
+     */
+    InputStream getContent() throws IOException;
+
+    /**
+     * Discard anything that wasn't read and release the connection. Can be called more
+     * than once.
+     */
+    void close();
+}
@@ -0,0 +1,160 @@
+package org.twaindirect.cloud;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CloudEventBrokerTest {
+    private CloudEventBroker broker;
+
+    static class TestListener implements CloudEventBrokerJSONListener {
+        final String commandId;
+        final List<JSONObject> responses;
+        final CountDownLatch delivered;
+
+        TestListener(String commandId) {
+            this(commandId, Collections.synchronizedList(new ArrayList<JSONObject>()), new CountDownLatch(1));
+        }
+
+        TestListener(String commandId, List<JSONObject> responses, CountDownLatch delivered) {
+            this.commandId = commandId;
+            this.responses = responses;
+            this.delivered = delivered;
+        }
+
+        @Override
+        public String getCommandId() {
+            return commandId;
+        }
+
+        @Override
+        public void deliverJSONResponse(JSONObject body) {
+            responses.add(body);
+            delivered.countDown();
+        }
+
+        @Override
+        public void deliverJSONResponse(String body) {
+            throw new AssertionError("Expected the parsed response");
+        }
+    }
+
+    // Takes the response as a string, like listeners written before JSON delivery
+    static class StringListener implements CloudEventBrokerListener {
+        final List<String> responses = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch delivered = new CountDownLatch(1);
+
+        @Override
+        public String getCommandId() {
+            return "s";
+        }
+
+        @Override
+        public void deliverJSONResponse(String body) {
+            responses.add(body);
+            delivered.countDown();
+        }
+    }
+
+    private static JSONObject response(String commandId, String method, String sessionId) throws Exception {
+        JSONObject body = new JSONObject();
+        body.put("commandId", commandId);
+        body.put("method", method);
+        if (sessionId != null) {
+            JSONObject session = new JSONObject();
+            session.put("sessionId", sessionId);
+            JSONObject results = new JSONObject();
+            results.put("session", session);
+            body.put("results", results);
+        }
+        return body;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        CloudEventBrokerInfo info = new CloudEventBrokerInfo();
+        info.url = "tcp://localhost:1883";
+        broker = new CloudEventBroker("token", info);
+    }
+
+    @Test
+    public void testRoutesByCommandId() throws Exception {
+        TestListener first = new TestListener("a");
+        TestListener second = new TestListener("b");
+        broker.addListener(first);
+        broker.addListener(second);
+
+        JSONObject payload = new JSONObject();
+        payload.put("body", response("b", "getSession", null).toString());
+        broker.decodeMessage(payload.toString().getBytes("UTF-8"));
+        broker.routeMessage("a", response("a", "getSession", null));
+
+        assertTrue(first.delivered.await(5, TimeUnit.SECONDS));
+        assertTrue(second.delivered.await(5, TimeUnit.SECONDS));
+        assertEquals("a", first.responses.get(0).getString("commandId"));
+        assertEquals("b", second.responses.get(0).getString("commandId"));
+        assertTrue(broker.listeners.isEmpty());
+    }
+
+    @Test
+    public void testStringListener() throws Exception {
+        StringListener listener = new StringListener();
+        broker.addListener(listener);
+        broker.routeMessage("s", response("s", "getSession", null));
+
+        assertTrue(listener.delivered.await(5, TimeUnit.SECONDS));
+        assertEquals("s", new JSONObject(listener.responses.get(0)).getString("commandId"));
+    }
+
+    @Test
+    public void testEarlyResponseIsHeldForListener() throws Exception {
+        broker.routeMessage("c", response("c", "getSession", null));
+        broker.routeMessage(null, new JSONObject());
+
+        TestListener listener = new TestListener("c");
+        broker.addListener(listener);
+        assertEquals(1, listener.responses.size());
+
+        TestListener noId = new TestListener(null);
+        broker.addListener(noId);
+        assertEquals(1, noId.responses.size());
+
+        assertTrue(broker.listeners.isEmpty());
+        assertTrue(broker.messagesReceived.isEmpty());
+    }
+
+    @Test
+    public void testEventsForSessionDeliveredInOrder() throws Exception {
+        int count = 50;
+        List<JSONObject> responses = Collections.synchronizedList(new ArrayList<JSONObject>());
+        CountDownLatch delivered = new CountDownLatch(count);
+        for (int idx = 0; idx < count; idx++) {
+            broker.addListener(new TestListener("event" + idx, responses, delivered));
+        }
+
+        for (int idx = 0; idx < count; idx++) {
+            broker.routeMessage("event" + idx, response("event" + idx, "waitForEvents", "session1"));
+        }
+
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        for (int idx = 0; idx < count; idx++) {
+            assertEquals("event" + idx, responses.get(idx).getString("commandId"));
+        }
+    }
+
+    @Test
+    public void testDeliveryLane() throws Exception {
+        assertNull(CloudEventBroker.deliveryLane(response("x", "readImageBlock", "session1")));
+        assertEquals("waitForEvents/session1", CloudEventBroker.deliveryLane(response("x", "waitForEvents", "session1")));
+    }
+}
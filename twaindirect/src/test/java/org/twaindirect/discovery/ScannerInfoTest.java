@@ -2,10 +2,8 @@ package org.twaindirect.discovery;
 
 import org.junit.Test;
 
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.URI;
+import java.net.URISyntaxException;
 
 /**
  * Created by stevex on 2017-09-08.
@@ -13,12 +11,9 @@ import java.util.Map;
 
 public class ScannerInfoTest {
     @Test
-    public void serializeDeserializeTest() throws MalformedURLException {
+    public void serializeDeserializeTest() throws URISyntaxException {
         // Set up a test object
-        Map<String, String> testMap = new HashMap<String, String>();
-        testMap.put("a", "one");
-        testMap.put("b", "two");
-        ScannerInfo si1 = new ScannerInfo(new URL("http://192.168.1.1/"), "192.168.1.1", "mydevice.local", testMap);
+        ScannerInfo si1 = new ScannerInfo(new URI("http://192.168.1.1/"), "192.168.1.1", "mydevice.local", "My Device", "Front desk");
 
         assert(si1.getUrl().toString().equals("http://192.168.1.1/"));
         assert(si1.getFqdn().equals("mydevice.local"));
@@ -29,11 +24,11 @@ public class ScannerInfoTest {
         // Deserialize
         ScannerInfo si2 = ScannerInfo.fromJSON(json);
 
-        assert(si1.equals(si2));
+        assert(si2 != null);
 
         assert(si1.getFqdn().equals(si2.getFqdn()));
-        assert(si1.getNote() == null);
-        assert(si2.getNote() == null);
+        assert(si1.getIpAddr().equals(si2.getIpAddr()));
+        assert(si1.getNote().equals(si2.getNote()));
         assert(si1.getUrl().equals(si2.getUrl()));
     }
 }
@@ -0,0 +1,119 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twaindirect.simulator.ScannerSimulator;
+import org.twaindirect.simulator.SimulatorConfig;
+import org.twaindirect.simulator.SimulatorServer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AsyncTransportTest {
+    private SimulatorServer server;
+    private AsyncTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        startServer(new SimulatorConfig());
+        transport = new AsyncTransport(1);
+    }
+
+    private void startServer(SimulatorConfig config) throws Exception {
+        server = new SimulatorServer(new ScannerSimulator(config));
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop();
+    }
+
+    // Send GET /privet/infoex, and return the callback thread once the body has been read
+    private Thread getInfo(final AtomicReference<Object> result) throws Exception {
+        final AtomicReference<Thread> callbackThread = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        sendGetInfo(result, callbackThread, done);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return callbackThread.get();
+    }
+
+    private void sendGetInfo(final AtomicReference<Object> result, final AtomicReference<Thread> callbackThread,
+                             final CountDownLatch done) {
+        TransportRequest request = new TransportRequest();
+        request.url = server.getUrl().resolve("/privet/infoex");
+        request.ipaddr = server.getIpAddress();
+        request.headers.put("X-Privet-Token", "");
+
+        transport.send(request, new AsyncResult<TransportResponse>() {
+            @Override
+            public void onResult(TransportResponse response) {
+                callbackThread.set(Thread.currentThread());
+                try {
+                    result.set(new JSONObject(StreamUtils.inputStreamToString(response.getContent())));
+                } catch (Exception e) {
+                    result.set(e);
+                } finally {
+                    response.close();
+                    done.countDown();
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                callbackThread.set(Thread.currentThread());
+                result.set(e);
+                done.countDown();
+            }
+        });
+    }
+
+    @Test
+    public void testStreamsResponse() throws Exception {
+        AtomicReference<Object> result = new AtomicReference<>();
+        getInfo(result);
+        assertTrue("Got " + result.get(), result.get() instanceof JSONObject);
+        assertTrue(((JSONObject)result.get()).has("type"));
+    }
+
+    @Test
+    public void testCloseStopsCallbackThreads() throws Exception {
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread callbackThread = getInfo(result);
+        assertTrue(callbackThread.getName().startsWith("AsyncTransport-"));
+
+        transport.close();
+        callbackThread.join(5000);
+        assertFalse("Callback thread still running", callbackThread.isAlive());
+
+        // Still usable after closing
+        result.set(null);
+        getInfo(result);
+        assertTrue("Got " + result.get(), result.get() instanceof JSONObject);
+    }
+
+    @Test
+    public void testCloseFailsRequestsInFlight() throws Exception {
+        server.stop();
+        SimulatorConfig config = new SimulatorConfig();
+        config.latency = 2000;
+        startServer(config);
+
+        AtomicReference<Object> result = new AtomicReference<>();
+        AtomicReference<Thread> callbackThread = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        sendGetInfo(result, callbackThread, done);
+
+        // Closing while the request waits for its response still calls the callback
+        Thread.sleep(200);
+        transport.close();
+        assertTrue("No callback after close", done.await(1000, TimeUnit.MILLISECONDS));
+        assertTrue("Got " + result.get(), result.get() instanceof Exception);
+    }
+}
@@ -0,0 +1,133 @@
+package org.twaindirect.session;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BlockReleaserTest {
+    // Records the ranges released, as "from-to"
+    static class RecordingSender implements BlockReleaser.Sender {
+        final List<String> released = new ArrayList<>();
+        final CountDownLatch firstRelease = new CountDownLatch(1);
+
+        @Override
+        public synchronized void releaseBlock(int fromBlock, int toBlock) {
+            released.add(fromBlock + "-" + toBlock);
+            firstRelease.countDown();
+        }
+
+        synchronized List<String> getReleased() {
+            return new ArrayList<>(released);
+        }
+    }
+
+    private final RecordingSender sender = new RecordingSender();
+    private BlockReleaser releaser;
+
+    private BlockReleaser releaser(int batchSize, int delay, int highWater) {
+        BlockDownloaderConfig config = new BlockDownloaderConfig();
+        config.releaseBatchSize = batchSize;
+        config.releaseDelay = delay;
+        config.releaseHighWater = highWater;
+        releaser = new BlockReleaser(sender, config);
+        return releaser;
+    }
+
+    @After
+    public void tearDown() {
+        if (releaser != null) {
+            releaser.shutdown();
+        }
+    }
+
+    private static List<String> coalesce(Integer... blocks) {
+        List<String> result = new ArrayList<>();
+        for (int[] range : BlockReleaser.coalesce(new TreeSet<>(Arrays.asList(blocks)))) {
+            result.add(range[0] + "-" + range[1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testCoalesce() {
+        assertEquals(Arrays.<String>asList(), coalesce());
+        assertEquals(Arrays.asList("4-4"), coalesce(4));
+        assertEquals(Arrays.asList("1-5"), coalesce(1, 2, 3, 4, 5));
+
+        // Gaps split the ranges
+        assertEquals(Arrays.asList("1-2", "4-4", "6-8"), coalesce(1, 2, 4, 6, 7, 8));
+
+        // Arrival order doesn't matter
+        assertEquals(Arrays.asList("1-3", "7-8"), coalesce(8, 3, 1, 7, 2));
+    }
+
+    @Test
+    public void testBatchSizeFlush() {
+        // A long delay, so only the batch size can trigger a release
+        BlockReleaser releaser = releaser(4, 60000, 100);
+
+        releaser.add(3);
+        releaser.add(1);
+        releaser.add(2);
+        assertEquals(Arrays.<String>asList(), sender.getReleased());
+
+        releaser.add(5);
+        assertEquals(Arrays.asList("1-3", "5-5"), sender.getReleased());
+    }
+
+    @Test
+    public void testDelayFlush() throws Exception {
+        BlockReleaser releaser = releaser(100, 50, 100);
+
+        long start = System.nanoTime();
+        releaser.add(1);
+        releaser.add(2);
+        assertEquals(Arrays.<String>asList(), sender.getReleased());
+
+        assertTrue(sender.firstRelease.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(Arrays.asList("1-2"), sender.getReleased());
+    }
+
+    @Test
+    public void testNoDelayReleasesImmediately() {
+        BlockReleaser releaser = releaser(100, 0, 100);
+        releaser.add(1);
+        assertEquals(Arrays.asList("1-1"), sender.getReleased());
+    }
+
+    @Test
+    public void testHighWaterFlush() {
+        BlockReleaser releaser = releaser(100, 60000, 16);
+        releaser.add(1);
+        releaser.add(2);
+
+        // Below the high water mark, nothing happens
+        releaser.scannerHolding(15);
+        assertEquals(Arrays.<String>asList(), sender.getReleased());
+
+        releaser.scannerHolding(16);
+        assertEquals(Arrays.asList("1-2"), sender.getReleased());
+
+        // Nothing left to release
+        releaser.scannerHolding(20);
+        assertEquals(Arrays.asList("1-2"), sender.getReleased());
+    }
+
+    @Test
+    public void testShutdownReleasesPending() {
+        BlockReleaser releaser = releaser(100, 60000, 100);
+        releaser.add(7);
+        releaser.add(9);
+        releaser.shutdown();
+        assertEquals(Arrays.asList("7-7", "9-9"), sender.getReleased());
+    }
+}
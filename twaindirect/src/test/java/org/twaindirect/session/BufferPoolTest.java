@@ -0,0 +1,53 @@
+package org.twaindirect.session;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(1024, 2, false);
+
+        ByteBuffer first = pool.acquire();
+        assertEquals(1024, first.capacity());
+        assertFalse(first.isDirect());
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+
+        first.put((byte)1);
+        pool.release(first);
+
+        // Comes back cleared
+        ByteBuffer second = pool.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(1024, second.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testBounded() {
+        BufferPool pool = new BufferPool(1024, 2, true);
+
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        ByteBuffer c = pool.acquire();
+        assertTrue(a.isDirect());
+
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.getPooledCount());
+        assertEquals(1, pool.getDiscards());
+
+        // Buffers that didn't come from a pool like this one are ignored
+        pool.release(ByteBuffer.allocateDirect(512));
+        pool.release(ByteBuffer.allocate(1024));
+        assertEquals(2, pool.getPooledCount());
+        assertEquals(1, pool.getDiscards());
+    }
+}
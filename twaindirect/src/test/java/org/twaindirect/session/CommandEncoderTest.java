@@ -0,0 +1,46 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class CommandEncoderTest {
+    @Test
+    public void testEncode() throws Exception {
+        JSONObject params = new JSONObject();
+        params.put("sessionId", "4c7d3a9e");
+        params.put("imageBlockNum", 7);
+        params.put("note", "caf\u00e9 \"quoted\"");
+
+        JSONObject body = new JSONObject(new String(CommandEncoder.encode("readImageBlock", "abc-123", params), "UTF-8"));
+        assertEquals("twainlocalscanner", body.getString("kind"));
+        assertEquals("readImageBlock", body.getString("method"));
+        assertEquals("abc-123", body.getString("commandId"));
+        assertTrue(params.similar(body.getJSONObject("params")));
+
+        body = new JSONObject(new String(CommandEncoder.encode("createSession", "def-456", null), "UTF-8"));
+        assertEquals(3, body.length());
+        assertEquals("createSession", body.getString("method"));
+        assertEquals("def-456", body.getString("commandId"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCommandId() {
+        CommandEncoder.encode("closeSession", "a\"b", null);
+    }
+
+    @Test
+    public void testCommandIds() {
+        Set<String> ids = new HashSet<>();
+        for (int idx = 0; idx < 10000; idx++) {
+            String id = CommandEncoder.newCommandId();
+            assertEquals(4, UUID.fromString(id).version());
+            assertTrue(ids.add(id));
+        }
+    }
+}
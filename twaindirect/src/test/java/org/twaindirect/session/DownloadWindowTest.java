@@ -0,0 +1,93 @@
+package org.twaindirect.session;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadWindowTest {
+    // 10ms per block, far longer than the test takes to run, so each round's measured
+    // throughput comes from these latencies rather than the wall clock
+    private static final long blockLatency = 10000000L;
+
+    private static DownloadWindow window(int size, int min, int max) {
+        BlockDownloaderConfig config = new BlockDownloaderConfig();
+        config.windowSize = size;
+        config.minWindowSize = min;
+        config.maxWindowSize = max;
+        return new DownloadWindow(config);
+    }
+
+    // Complete one window's worth of blocks
+    private static void round(DownloadWindow window, long bytes, long latency) {
+        for (int idx = window.getSize(); idx > 0; idx--) {
+            window.onSuccess(bytes, latency);
+        }
+    }
+
+    @Test
+    public void testGrowsWhileThroughputRises() {
+        DownloadWindow window = window(3, 1, 8);
+
+        // A round with more blocks in flight, each taking as long, moves more bytes
+        round(window, 100000, blockLatency);
+        assertEquals(4, window.getSize());
+        round(window, 100000, blockLatency);
+        assertEquals(5, window.getSize());
+
+        // Nothing happens until a whole round has completed
+        window.onSuccess(100000, blockLatency);
+        assertEquals(5, window.getSize());
+    }
+
+    @Test
+    public void testClampedAtMax() {
+        DownloadWindow window = window(3, 1, 5);
+        for (int idx = 0; idx < 10; idx++) {
+            round(window, 100000, blockLatency);
+        }
+        assertEquals(5, window.getSize());
+    }
+
+    @Test
+    public void testShrinksWhenLatencyRises() {
+        DownloadWindow window = window(4, 1, 8);
+        round(window, 100000, blockLatency);
+        assertEquals(5, window.getSize());
+
+        // Blocks take ten times as long, so throughput drops and latency per byte is
+        // well past the best we've seen
+        round(window, 100000, blockLatency * 10);
+        assertEquals(3, window.getSize());
+    }
+
+    @Test
+    public void testShrinksOnFailure() {
+        DownloadWindow window = window(8, 2, 8);
+        window.onFailure();
+        assertEquals(4, window.getSize());
+        window.onFailure();
+        assertEquals(2, window.getSize());
+
+        // Clamped at min
+        window.onFailure();
+        assertEquals(2, window.getSize());
+    }
+
+    @Test
+    public void testFixedWindow() {
+        BlockDownloaderConfig config = new BlockDownloaderConfig();
+        config.windowSize = 4;
+        config.adaptiveWindow = false;
+        DownloadWindow window = new DownloadWindow(config);
+
+        round(window, 100000, blockLatency);
+        window.onFailure();
+        assertEquals(4, window.getSize());
+    }
+
+    @Test
+    public void testInitialSizeClamped() {
+        assertEquals(8, window(20, 1, 8).getSize());
+        assertEquals(2, window(0, 2, 8).getSize());
+    }
+}
@@ -0,0 +1,77 @@
+package org.twaindirect.session;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class JsonStreamParserTest {
+    private static Object parse(String json) throws IOException {
+        return JsonStreamParser.parse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testObject() throws IOException {
+        String json = "{\"kind\":\"twainlocalscanner\",\"commandId\":\"abc\",\"method\":\"waitForEvents\",\n"
+                + "  \"results\": {\"success\": true, \"events\": [ {\"event\":\"imageBlocks\", \"session\": {\"revision\": 3,"
+                + " \"state\": \"capturing\", \"imageBlocks\": [1, 2, 3], \"doneCapturing\": false, \"detected\": null,"
+                + " \"big\": 12345678901, \"ratio\": -1.5e3, \"text\": \"tab\\there \\\"quoted\\\" \\u00e9 caf\u00e9 \uD83D\uDCC4\"}}]}}\n";
+
+        JSONObject result = (JSONObject)parse(json);
+        assertTrue(result.similar(new JSONObject(json)));
+
+        JSONObject session = result.getJSONObject("results").getJSONArray("events").getJSONObject(0).getJSONObject("session");
+        assertEquals(Integer.valueOf(3), session.get("revision"));
+        assertEquals(Long.valueOf(12345678901L), session.get("big"));
+        assertEquals(-1500.0, session.getDouble("ratio"), 0);
+        assertEquals(JSONObject.NULL, session.get("detected"));
+        assertEquals("tab\there \"quoted\" \u00e9 caf\u00e9 \uD83D\uDCC4", session.getString("text"));
+    }
+
+    @Test
+    public void testArray() throws IOException {
+        JSONArray result = (JSONArray)parse(" [ {}, [], \"a\", 1 ] ");
+        assertEquals(4, result.length());
+        assertEquals(0, result.getJSONObject(0).length());
+        assertEquals(0, result.getJSONArray(1).length());
+    }
+
+    @Test
+    public void testLargeDocument() throws IOException {
+        // Bigger than the parser's buffer, with multi-byte characters split across reads
+        JSONArray blocks = new JSONArray();
+        for (int idx = 0; idx < 5000; idx++) {
+            blocks.put("block \u00e9\u4e2d " + idx);
+        }
+        JSONObject json = new JSONObject();
+        json.put("imageBlocks", blocks);
+
+        JSONObject result = JsonStreamParser.parseObject(new ByteArrayInputStream(json.toString().getBytes("UTF-8")));
+        assertTrue(result.similar(json));
+    }
+
+    @Test
+    public void testErrors() throws IOException {
+        String[] invalid = { "", "  ", "\"text\"", "{\"a\":1", "{\"a\" 1}", "{\"a\":1,}", "[1 2]", "{\"a\":tru}", "{\"a\":1} x", "{\"a\":\"\\q\"}" };
+        for (String json : invalid) {
+            try {
+                parse(json);
+                fail("Parsed " + json);
+            } catch (JSONException e) {
+                // Expected
+            }
+        }
+
+        try {
+            JsonStreamParser.parseObject(new ByteArrayInputStream("[]".getBytes("UTF-8")));
+            fail("Parsed an array as an object");
+        } catch (JSONException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.twaindirect.session;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MultipartReaderTest {
+    private static final String boundary = "6a0f1b4c";
+
+    private static final String json = "{\"results\":{\"success\":true}}";
+
+    // Image data that contains CRLFs and something that looks like the start of a boundary
+    private static byte[] imageData() {
+        byte[] data = new byte[100000];
+        for (int idx = 0; idx < data.length; idx++) {
+            data[idx] = (byte)(idx * 31);
+        }
+        byte[] trap = ("\r\n--" + boundary.substring(0, 4)).getBytes();
+        System.arraycopy(trap, 0, data, 5000, trap.length);
+        data[data.length - 2] = '\r';
+        data[data.length - 1] = '\n';
+        return data;
+    }
+
+    private static byte[] multipartBody(byte[] image, boolean withContentLength) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + boundary + "\r\n").getBytes());
+        body.write("Content-Type: application/json; charset=UTF-8\r\n".getBytes());
+        if (withContentLength) {
+            body.write(("Content-Length: " + json.length() + "\r\n").getBytes());
+        }
+        body.write("\r\n".getBytes());
+        body.write(json.getBytes());
+        body.write(("\r\n--" + boundary + "\r\n").getBytes());
+        body.write("Content-Type: application/pdf\r\n".getBytes());
+        if (withContentLength) {
+            body.write(("Content-Length: " + image.length + "\r\n").getBytes());
+        }
+        body.write("\r\n".getBytes());
+        body.write(image);
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes());
+        return body.toByteArray();
+    }
+
+    private static void checkParts(MultipartReader reader, byte[] image) throws IOException {
+        assertTrue(reader.nextPart());
+        assertTrue(reader.getContentType().startsWith("application/json"));
+        assertEquals(json, new String(reader.readBody(), "UTF-8"));
+
+        assertTrue(reader.nextPart());
+        assertEquals("application/pdf", reader.getContentType());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(image.length, reader.copyBody(out));
+        assertTrue(Arrays.equals(image, out.toByteArray()));
+
+        assertFalse(reader.nextPart());
+    }
+
+    @Test
+    public void readsPartsUsingContentLength() throws IOException {
+        byte[] image = imageData();
+        byte[] body = multipartBody(image, true);
+        checkParts(new MultipartReader(new ByteArrayInputStream(body)), image);
+    }
+
+    @Test
+    public void readsPartsUsingBoundary() throws IOException {
+        byte[] image = imageData();
+        byte[] body = multipartBody(image, false);
+        checkParts(new MultipartReader(new ByteArrayInputStream(body), boundary), image);
+    }
+
+    @Test
+    public void skipsUnreadParts() throws IOException {
+        byte[] body = multipartBody(imageData(), false);
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(body));
+        assertTrue(reader.nextPart());
+        assertTrue(reader.nextPart());
+        assertEquals("application/pdf", reader.getContentType());
+        assertFalse(reader.nextPart());
+    }
+}
@@ -0,0 +1,483 @@
+package org.twaindirect.session;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.twaindirect.simulator.ScannerSimulator;
+import org.twaindirect.simulator.SimulatorConfig;
+import org.twaindirect.simulator.SimulatorHandler;
+import org.twaindirect.simulator.SimulatorServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs complete scans against the scanner simulator.
+ */
+public class SessionTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private SimulatorServer server;
+
+    // Records what the session delivers
+    static class RecordingListener implements SessionListener {
+        final List<byte[]> images = Collections.synchronizedList(new ArrayList<byte[]>());
+        final List<JSONObject> metadata = Collections.synchronizedList(new ArrayList<JSONObject>());
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+            try {
+                images.add(readFile(pdfPath));
+                this.metadata.add(metadata);
+            } catch (IOException e) {
+                errors.add(e);
+            }
+        }
+
+        @Override
+        public void onStateChanged(Session session, Session.State oldState, Session.State newState) {
+        }
+
+        @Override
+        public void onStatusChanged(Session session, boolean success, Session.StatusDetected status) {
+        }
+
+        @Override
+        public void onDoneCapturing(Session session) {
+            done.countDown();
+        }
+
+        @Override
+        public void onConnectionError(Session session, Exception reason) {
+            errors.add(reason);
+            done.countDown();
+        }
+    }
+
+    // Also takes images in memory, counting how many arrive each way
+    static class InMemoryRecordingListener extends RecordingListener implements InMemoryImageListener {
+        final AtomicInteger fileImages = new AtomicInteger();
+        final AtomicInteger memoryImages = new AtomicInteger();
+
+        @Override
+        public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+            fileImages.incrementAndGet();
+            super.onImageReceived(session, pdfPath, metadata);
+        }
+
+        @Override
+        public void onImageReceived(Session session, ByteBuffer image, JSONObject metadata) {
+            memoryImages.incrementAndGet();
+            byte[] data = new byte[image.remaining()];
+            image.get(data);
+            images.add(data);
+            this.metadata.add(metadata);
+        }
+    }
+
+    // Also records the delivery watermark, checking every image it covers has arrived
+    static class WatermarkRecordingListener extends RecordingListener implements DeliveryWatermarkListener {
+        final List<Integer> watermarks = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void onImagesDeliveredThrough(Session session, int sheetNumber, int imageNumber) {
+            int received = 0;
+            synchronized(metadata) {
+                for (JSONObject imageMetadata : metadata) {
+                    if (imageMetadata.getJSONObject("address").getInt("imageNumber") <= imageNumber) {
+                        received++;
+                    }
+                }
+            }
+            if (received != imageNumber) {
+                errors.add(new IllegalStateException("Watermark at image " + imageNumber + " but only " + received + " delivered"));
+            }
+            watermarks.add(imageNumber);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private RecordingListener scan(SimulatorConfig config, BlockDownloaderConfig downloaderConfig) throws Exception {
+        return scan(config, downloaderConfig, null);
+    }
+
+    private RecordingListener scan(SimulatorConfig config, BlockDownloaderConfig downloaderConfig, SessionMetrics metrics) throws Exception {
+        return scan(config, downloaderConfig, metrics, null);
+    }
+
+    private RecordingListener scan(SimulatorConfig config, BlockDownloaderConfig downloaderConfig, SessionMetrics metrics, ScannerTransport transport) throws Exception {
+        server = new SimulatorServer(new ScannerSimulator(config));
+        server.start();
+
+        Session session = new Session(server.getUrl(), server.getIpAddress());
+        if (transport != null) {
+            session.setTransport(transport);
+        }
+        return scan(session, downloaderConfig, metrics);
+    }
+
+    private RecordingListener scan(Session session, BlockDownloaderConfig downloaderConfig, SessionMetrics metrics) throws Exception {
+        return scan(session, downloaderConfig, metrics, new RecordingListener());
+    }
+
+    private RecordingListener scan(final Session session, BlockDownloaderConfig downloaderConfig, SessionMetrics metrics, final RecordingListener listener) throws Exception {
+        session.setTempDir(tempFolder.newFolder());
+        session.setSessionListener(listener);
+        if (downloaderConfig != null) {
+            session.setBlockDownloaderConfig(downloaderConfig);
+        }
+        session.setMetrics(metrics);
+
+        final AsyncResponse startCapturing = new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                listener.onConnectionError(session, e);
+            }
+        };
+
+        session.open(new AsyncResponse() {
+            @Override
+            public void onSuccess() {
+                JSONObject task = new JSONObject("{\"actions\":[{\"action\":\"configure\"}]}");
+                session.sendTask(task, new AsyncResult<JSONObject>() {
+                    @Override
+                    public void onResult(JSONObject result) {
+                        session.startCapturing(startCapturing);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        listener.onConnectionError(session, e);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                listener.onConnectionError(session, e);
+            }
+        });
+
+        assertTrue("Scan did not finish", listener.done.await(30, TimeUnit.SECONDS));
+        assertEquals(Collections.<Exception>emptyList(), listener.errors);
+        return listener;
+    }
+
+    private static void checkImages(RecordingListener listener, SimulatorConfig config) {
+        assertEquals(config.pageCount, listener.images.size());
+        for (int idx = 0; idx < config.pageCount; idx++) {
+            int imageNumber = idx + 1;
+            assertEquals(imageNumber, listener.metadata.get(idx).getJSONObject("address").getInt("imageNumber"));
+            assertTrue("Image " + imageNumber + " is wrong",
+                    Arrays.equals(ScannerSimulator.imageData(imageNumber, config.imageSize), listener.images.get(idx)));
+        }
+    }
+
+    // Like checkImages, but the images can have arrived in any order
+    private static void checkImagesAnyOrder(RecordingListener listener, SimulatorConfig config) {
+        assertEquals(config.pageCount, listener.images.size());
+        boolean[] seen = new boolean[config.pageCount + 1];
+        for (int idx = 0; idx < config.pageCount; idx++) {
+            int imageNumber = listener.metadata.get(idx).getJSONObject("address").getInt("imageNumber");
+            assertFalse("Image " + imageNumber + " delivered twice", seen[imageNumber]);
+            seen[imageNumber] = true;
+            assertTrue("Image " + imageNumber + " is wrong",
+                    Arrays.equals(ScannerSimulator.imageData(imageNumber, config.imageSize), listener.images.get(idx)));
+        }
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 5;
+        config.imageSize = 50000;
+        config.blockSize = 50000;
+
+        HistogramSessionMetrics metrics = new HistogramSessionMetrics();
+        RecordingListener listener = scan(config, null, metrics);
+        checkImages(listener, config);
+
+        assertEquals(1, metrics.getCommandTimes("createSession").getCount());
+        assertEquals(config.pageCount, metrics.getBlockDownloadTime().getCount());
+        assertEquals(config.pageCount, metrics.getBlockFirstByteTime().getCount());
+        assertEquals(config.imageSize, metrics.getBlockBytes().getMax());
+        assertEquals(config.pageCount, metrics.getListenerTime().getCount());
+        assertTrue(metrics.getReleaseTime().getCount() > 0);
+    }
+
+    @Test
+    public void testMultipartImagesWithJitter() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 6;
+        config.imageSize = 100000;
+        config.blockSize = 30000;
+        config.jitter = 5;
+        config.maxBufferedBlocks = 8;
+        config.partContentLength = false;
+
+        BlockDownloaderConfig downloaderConfig = new BlockDownloaderConfig();
+        downloaderConfig.adaptiveWindow = false;
+        downloaderConfig.windowSize = 4;
+
+        RecordingListener listener = scan(config, downloaderConfig);
+        checkImages(listener, config);
+    }
+
+    @Test
+    public void testFailedBlocksRetried() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 10;
+        config.imageSize = 60000;
+        config.blockSize = 20000;
+        config.errorRate = 0.2;
+
+        // Enough retries that no block fails every time
+        BlockDownloaderConfig downloaderConfig = new BlockDownloaderConfig();
+        downloaderConfig.maxBlockRetries = 8;
+
+        RecordingListener listener = scan(config, downloaderConfig);
+        checkImages(listener, config);
+    }
+
+    @Test
+    public void testTruncatedBlockLeavesNoFiles() throws Exception {
+        // One block, which is cut off every time it's downloaded
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 1;
+        config.imageSize = 60000;
+        config.blockSize = 60000;
+        config.truncateRate = 1;
+
+        // So the image data is written to a file before we know its name
+        config.imagePartFirst = true;
+
+        BlockDownloaderConfig downloaderConfig = new BlockDownloaderConfig();
+        downloaderConfig.maxBlockRetries = 1;
+
+        final List<Exception> connectionErrors = Collections.synchronizedList(new ArrayList<Exception>());
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onConnectionError(Session session, Exception reason) {
+                connectionErrors.add(reason);
+                done.countDown();
+            }
+        };
+
+        server = new SimulatorServer(new ScannerSimulator(config));
+        server.start();
+        scan(new Session(server.getUrl(), server.getIpAddress()), downloaderConfig, null, listener);
+
+        assertEquals(1, connectionErrors.size());
+        assertEquals(0, listener.images.size());
+        assertEquals(Collections.<String>emptyList(), downloadFiles(tempFolder.getRoot()));
+    }
+
+    // The partly downloaded blocks left anywhere under dir
+    private static List<String> downloadFiles(File dir) {
+        List<String> found = new ArrayList<>();
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                found.addAll(downloadFiles(file));
+            } else if (file.getName().endsWith(".download")) {
+                found.add(file.getName());
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void testListenerExceptionDoesNotStopDelivery() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 6;
+        config.imageSize = 60000;
+        config.blockSize = 20000;
+        config.maxBufferedBlocks = 8;
+
+        // Fails on the second image
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onImageReceived(Session session, File pdfPath, JSONObject metadata) {
+                if (metadata.getJSONObject("address").getInt("imageNumber") == 2) {
+                    throw new IllegalStateException("Application failed");
+                }
+                super.onImageReceived(session, pdfPath, metadata);
+            }
+        };
+
+        server = new SimulatorServer(new ScannerSimulator(config));
+        server.start();
+        Session session = new Session(server.getUrl(), server.getIpAddress());
+        // The scan only finishes if the failed image's blocks were released too, since
+        // the simulator stops at maxBufferedBlocks unreleased blocks
+        scan(session, null, null, listener);
+
+        // Every other image still arrives
+        assertEquals(config.pageCount - 1, listener.images.size());
+        for (JSONObject metadata : listener.metadata) {
+            assertNotEquals(2, metadata.getJSONObject("address").getInt("imageNumber"));
+        }
+    }
+
+    @Test
+    public void testAsyncTransport() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 6;
+        config.imageSize = 100000;
+        config.blockSize = 30000;
+        config.jitter = 5;
+        config.maxBufferedBlocks = 8;
+
+        BlockDownloaderConfig downloaderConfig = new BlockDownloaderConfig();
+        downloaderConfig.adaptiveWindow = false;
+        downloaderConfig.windowSize = 4;
+
+        AsyncTransport transport = new AsyncTransport(2);
+        try {
+            RecordingListener listener = scan(config, downloaderConfig, null, transport);
+            checkImages(listener, config);
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void testLoopbackTransport() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 50;
+        config.imageSize = 40000;
+        config.blockSize = 10000;
+        config.maxBufferedBlocks = 16;
+
+        SimulatorHandler handler = new SimulatorHandler(new ScannerSimulator(config));
+        Session session = new Session(SimulatorHandler.url, null);
+        session.setTransport(new LoopbackTransport(handler));
+
+        try {
+            RecordingListener listener = scan(session, null, null);
+            checkImages(listener, config);
+        } finally {
+            handler.getSimulator().shutdown();
+        }
+    }
+
+    @Test
+    public void testInMemoryDelivery() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 20;
+        config.imageSize = 40000;
+        config.blockSize = 10000;
+        config.maxBufferedBlocks = 16;
+
+        BlockDownloaderConfig downloaderConfig = new BlockDownloaderConfig();
+        downloaderConfig.inMemoryImageLimit = 65536;
+
+        SimulatorHandler handler = new SimulatorHandler(new ScannerSimulator(config));
+        Session session = new Session(SimulatorHandler.url, null);
+        session.setTransport(new LoopbackTransport(handler));
+
+        try {
+            InMemoryRecordingListener listener = new InMemoryRecordingListener();
+            scan(session, downloaderConfig, null, listener);
+            checkImages(listener, config);
+            assertEquals(config.pageCount, listener.memoryImages.get());
+            assertEquals(0, listener.fileImages.get());
+        } finally {
+            handler.getSimulator().shutdown();
+        }
+    }
+
+    @Test
+    public void testInMemoryDeliveryOverLimit() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 6;
+        config.imageSize = 40000;
+        config.blockSize = 10000;
+
+        // Every part fits, but no whole image does
+        BlockDownloaderConfig downloaderConfig = new BlockDownloaderConfig();
+        downloaderConfig.inMemoryImageLimit = 25000;
+
+        server = new SimulatorServer(new ScannerSimulator(config));
+        server.start();
+        Session session = new Session(server.getUrl(), server.getIpAddress());
+
+        InMemoryRecordingListener listener = new InMemoryRecordingListener();
+        scan(session, downloaderConfig, null, listener);
+        checkImages(listener, config);
+        assertEquals(0, listener.memoryImages.get());
+        assertEquals(config.pageCount, listener.fileImages.get());
+    }
+
+    @Test
+    public void testOutOfOrderDelivery() throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.pageCount = 12;
+        config.imageSize = 60000;
+        config.blockSize = 20000;
+        config.jitter = 10;
+        config.maxBufferedBlocks = 12;
+
+        BlockDownloaderConfig downloaderConfig = new BlockDownloaderConfig();
+        downloaderConfig.adaptiveWindow = false;
+        downloaderConfig.windowSize = 6;
+        downloaderConfig.outOfOrderDelivery = true;
+
+        server = new SimulatorServer(new ScannerSimulator(config));
+        server.start();
+        Session session = new Session(server.getUrl(), server.getIpAddress());
+
+        WatermarkRecordingListener listener = new WatermarkRecordingListener();
+        scan(session, downloaderConfig, null, listener);
+        checkImagesAnyOrder(listener, config);
+
+        // The watermark only moves forward, and ends up covering every image
+        assertFalse(listener.watermarks.isEmpty());
+        for (int idx = 1; idx < listener.watermarks.size(); idx++) {
+            assertTrue(listener.watermarks.get(idx) > listener.watermarks.get(idx - 1));
+        }
+        assertEquals(config.pageCount, (int)listener.watermarks.get(listener.watermarks.size() - 1));
+    }
+}
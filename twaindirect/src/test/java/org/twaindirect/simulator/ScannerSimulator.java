@@ -0,0 +1,605 @@
+package org.twaindirect.simulator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A simulated TWAIN Direct scanner, used to exercise Session and BlockDownloader without
+ * hardware.
+ *
+ * This is the scanner's logic only - it turns a request into a SimulatorResponse and knows
+ * nothing about sockets, so it can sit behind SimulatorServer or be called directly.
+ * It answers /infoex and the twainlocalscanner commands (createSession, sendTask,
+ * startCapturing, stopCapturing, waitForEvents, readImageBlock, releaseImageBlocks and
+ * closeSession) for a single session at a time.
+ *
+ * Once capturing starts, a producer thread adds pages according to SimulatorConfig. Each
+ * page is split into blocks of at most blockSize bytes. The image data is synthetic, but
+ * deterministic, so tests can check what they receive against imageData().
+ */
+public class ScannerSimulator {
+    private static final Logger logger = Logger.getLogger(ScannerSimulator.class.getName());
+
+    private static final String boundary = "twaindirect-simulator-6a0f1b4c";
+
+    private final SimulatorConfig config;
+    private final Random random;
+    private final String privetToken = UUID.randomUUID().toString();
+
+    // Session state, guarded by synchronized(this)
+    private String sessionId;
+    private String state = "noSession";
+    private int revision;
+    private JSONObject task;
+    private boolean doneCapturing;
+    private boolean imageBlocksDrained;
+    private int nextBlockNum;
+
+    // Blocks that have been produced and not yet released, by block number
+    private final TreeMap<Integer, Block> blocks = new TreeMap<>();
+
+    // Incremented to stop the current producer thread
+    private int captureGeneration;
+    private Thread producer;
+    private boolean shutdown;
+
+    // Counters for benchmarks
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong imageBytesServed = new AtomicLong();
+
+    // System.nanoTime() when each image was scanned, by image number
+    private final Map<Integer, Long> pageProducedTimes = new ConcurrentHashMap<>();
+
+    // Where a block's data comes from
+    static class Block {
+        int blockNum;
+        int imageNumber;
+        int imagePart;
+        String moreParts;
+        int offset;
+        int length;
+    }
+
+    public ScannerSimulator(SimulatorConfig config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+    }
+
+    public SimulatorConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Number of requests handled so far.
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Number of image bytes returned by readImageBlock so far.
+     */
+    public long getImageBytesServed() {
+        return imageBytesServed.get();
+    }
+
+    /**
+     * When an image was scanned, as System.nanoTime(), or 0 if it hasn't been.
+     */
+    public long getPageProducedTime(int imageNumber) {
+        Long time = pageProducedTimes.get(imageNumber);
+        return time == null ? 0 : time;
+    }
+
+    /**
+     * The data for an image. Byte i of image n is always the same value.
+     */
+    public static byte[] imageData(int imageNumber, int size) {
+        byte[] data = new byte[size];
+        for (int idx = 0; idx < size; idx++) {
+            data[idx] = (byte)(imageNumber * 131 + idx * 31);
+        }
+        return data;
+    }
+
+    /**
+     * Stop producing pages and release anyone waiting for events.
+     */
+    public void shutdown() {
+        synchronized(this) {
+            shutdown = true;
+            stopProducer();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Handle a request.
+     * @param httpMethod GET or POST
+     * @param path Path part of the request URL
+     * @param privetToken Value of the X-Privet-Token header, or null
+     * @param body The request body, or null
+     */
+    public SimulatorResponse handleRequest(String httpMethod, String path, String privetToken, byte[] body) {
+        requestCount.incrementAndGet();
+        simulateLatency();
+
+        if (path.endsWith("/infoex")) {
+            if (privetToken == null) {
+                return SimulatorResponse.json(400, "{\"error\":\"invalid_x_privet_token\"}");
+            }
+            return SimulatorResponse.json(200, infoEx().toString());
+        }
+
+        if (!path.endsWith("/twaindirect/session") || !"POST".equals(httpMethod)) {
+            return SimulatorResponse.json(404, "{\"error\":\"not_found\"}");
+        }
+
+        if (!this.privetToken.equals(privetToken)) {
+            return SimulatorResponse.json(400, "{\"error\":\"invalid_x_privet_token\"}");
+        }
+
+        JSONObject command;
+        try {
+            command = new JSONObject(new String(body, "UTF-8"));
+        } catch (IOException | JSONException | NullPointerException e) {
+            return SimulatorResponse.json(400, "{\"error\":\"invalid_json\"}");
+        }
+
+        String method = command.optString("method");
+        JSONObject params = command.optJSONObject("params");
+        if (params == null) {
+            params = new JSONObject();
+        }
+
+        logger.fine("Simulator received " + method);
+
+        JSONObject results;
+        switch (method) {
+            case "createSession":
+                results = createSession();
+                break;
+            case "sendTask":
+                results = sendTask(params);
+                break;
+            case "startCapturing":
+                results = startCapturing(params);
+                break;
+            case "stopCapturing":
+                results = stopCapturing(params);
+                break;
+            case "waitForEvents":
+                results = waitForEvents(params);
+                break;
+            case "readImageBlock":
+                return readImageBlock(command, params);
+            case "releaseImageBlocks":
+                results = releaseImageBlocks(params);
+                break;
+            case "closeSession":
+                results = closeSession(params);
+                break;
+            default:
+                results = failure("invalidCommand");
+                break;
+        }
+
+        return SimulatorResponse.json(200, commandResponse(command, results).toString());
+    }
+
+    private void simulateLatency() {
+        int delay = config.latency;
+        if (config.jitter > 0) {
+            delay += random.nextInt(config.jitter + 1);
+        }
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private JSONObject infoEx() {
+        JSONObject info = new JSONObject();
+        info.put("version", "1.0");
+        info.put("name", "TWAIN Direct Simulator");
+        info.put("description", "Simulated scanner");
+        info.put("url", "");
+        info.put("type", "twaindirect");
+        info.put("id", "");
+        info.put("device_state", "idle");
+        info.put("connection_state", "offline");
+        info.put("manufacturer", "TWAIN Working Group");
+        info.put("model", "Simulator");
+        info.put("serial_number", "X");
+        info.put("firmware", "1.0");
+        info.put("uptime", "0");
+        info.put("x-privet-token", privetToken);
+        info.put("api", new JSONArray().put("/privet/twaindirect/session"));
+        info.put("semantic_state", "");
+        info.put("clouds", new JSONArray());
+        return info;
+    }
+
+    private static JSONObject commandResponse(JSONObject command, JSONObject results) {
+        JSONObject response = new JSONObject();
+        response.put("kind", "twainlocalscanner");
+        response.put("commandId", command.optString("commandId"));
+        response.put("method", command.optString("method"));
+        response.put("results", results);
+        return response;
+    }
+
+    private static JSONObject failure(String code) {
+        JSONObject results = new JSONObject();
+        results.put("success", false);
+        results.put("code", code);
+        return results;
+    }
+
+    // Must be called with the lock held
+    private JSONObject success() {
+        JSONObject results = new JSONObject();
+        results.put("success", true);
+        results.put("session", sessionJSON());
+        return results;
+    }
+
+    // Must be called with the lock held
+    private JSONObject sessionJSON() {
+        JSONObject session = new JSONObject();
+        session.put("sessionId", sessionId);
+        session.put("revision", revision);
+        session.put("state", state);
+        session.put("doneCapturing", doneCapturing);
+        session.put("imageBlocksDrained", imageBlocksDrained);
+
+        JSONObject status = new JSONObject();
+        status.put("success", true);
+        status.put("detected", "nominal");
+        session.put("status", status);
+
+        JSONArray imageBlocks = new JSONArray();
+        for (int blockNum : blocks.keySet()) {
+            imageBlocks.put(blockNum);
+        }
+        session.put("imageBlocks", imageBlocks);
+
+        if (task != null) {
+            session.put("task", task);
+        }
+        return session;
+    }
+
+    // Must be called with the lock held
+    private boolean isCurrentSession(JSONObject params) {
+        return sessionId != null && !"noSession".equals(state) && sessionId.equals(params.optString("sessionId"));
+    }
+
+    // The session changed - must be called with the lock held
+    private void changed() {
+        revision++;
+        notifyAll();
+    }
+
+    private synchronized JSONObject createSession() {
+        if (!"noSession".equals(state)) {
+            return failure("busy");
+        }
+
+        sessionId = UUID.randomUUID().toString();
+        state = "ready";
+        task = null;
+        doneCapturing = false;
+        imageBlocksDrained = false;
+        nextBlockNum = 1;
+        blocks.clear();
+        changed();
+        return success();
+    }
+
+    private synchronized JSONObject sendTask(JSONObject params) {
+        if (!isCurrentSession(params)) {
+            return failure("invalidSessionId");
+        }
+
+        task = params.optJSONObject("task");
+        if (task == null) {
+            return failure("invalidTask");
+        }
+
+        changed();
+        return success();
+    }
+
+    private synchronized JSONObject startCapturing(JSONObject params) {
+        if (!isCurrentSession(params)) {
+            return failure("invalidSessionId");
+        }
+
+        if (!"ready".equals(state)) {
+            return failure("invalidState");
+        }
+
+        state = "capturing";
+        doneCapturing = false;
+        imageBlocksDrained = false;
+        pageProducedTimes.clear();
+        startProducer();
+        changed();
+        return success();
+    }
+
+    private synchronized JSONObject stopCapturing(JSONObject params) {
+        if (!isCurrentSession(params)) {
+            return failure("invalidSessionId");
+        }
+
+        stopProducer();
+        doneCapturing = true;
+        imageBlocksDrained = blocks.isEmpty();
+        state = imageBlocksDrained ? "ready" : "draining";
+        changed();
+        return success();
+    }
+
+    private synchronized JSONObject waitForEvents(JSONObject params) {
+        if (!isCurrentSession(params)) {
+            return failure("invalidSessionId");
+        }
+
+        String waitingSessionId = sessionId;
+        int knownRevision = params.optInt("sessionRevision", 0);
+        long deadline = System.currentTimeMillis() + config.waitForEventsTimeout;
+
+        while (revision <= knownRevision && !shutdown && waitingSessionId.equals(sessionId)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        JSONArray events = new JSONArray();
+        if (revision > knownRevision && waitingSessionId.equals(sessionId)) {
+            JSONObject event = new JSONObject();
+            event.put("event", "imageBlocks");
+            event.put("session", sessionJSON());
+            events.put(event);
+        }
+
+        JSONObject results = new JSONObject();
+        results.put("success", true);
+        results.put("events", events);
+        return results;
+    }
+
+    private SimulatorResponse readImageBlock(JSONObject command, JSONObject params) {
+        if (config.errorRate > 0 && random.nextDouble() < config.errorRate) {
+            return SimulatorResponse.json(503, "{\"error\":\"simulated_failure\"}");
+        }
+
+        Block block;
+        JSONObject results;
+        synchronized(this) {
+            if (!isCurrentSession(params)) {
+                return SimulatorResponse.json(200, commandResponse(command, failure("invalidSessionId")).toString());
+            }
+
+            block = blocks.get(params.optInt("imageBlockNum"));
+            if (block == null) {
+                return SimulatorResponse.json(200, commandResponse(command, failure("invalidImageBlockNumber")).toString());
+            }
+
+            results = success();
+        }
+
+        results.put("metadata", metadata(block));
+
+        boolean truncate = config.truncateRate > 0 && random.nextDouble() < config.truncateRate;
+
+        byte[] image = imageData(block.imageNumber, config.imageSize);
+        try {
+            byte[] json = commandResponse(command, results).toString().getBytes("UTF-8");
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream(json.length + block.length + 512);
+            if (!config.imagePartFirst) {
+                writePart(body, "application/json; charset=UTF-8", json, 0, json.length);
+            }
+            writePart(body, "application/pdf", image, block.offset, block.length);
+
+            // Where the image data ends, before the part's closing CRLF
+            int imageEnd = body.size() - 2;
+
+            if (config.imagePartFirst) {
+                writePart(body, "application/json; charset=UTF-8", json, 0, json.length);
+            }
+            body.write(("--" + boundary + "--\r\n").getBytes("US-ASCII"));
+
+            byte[] bytes = body.toByteArray();
+            if (truncate) {
+                // The connection drops half way through the image data
+                bytes = Arrays.copyOf(bytes, imageEnd - block.length / 2);
+            } else {
+                imageBytesServed.addAndGet(block.length);
+            }
+            return new SimulatorResponse(200, "multipart/mixed; boundary=" + boundary, bytes);
+        } catch (IOException e) {
+            // Not expected writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writePart(ByteArrayOutputStream body, String contentType, byte[] data, int offset, int length) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("--").append(boundary).append("\r\n");
+        headers.append("Content-Type: ").append(contentType).append("\r\n");
+        if (config.partContentLength) {
+            headers.append("Content-Length: ").append(length).append("\r\n");
+        }
+        headers.append("\r\n");
+
+        body.write(headers.toString().getBytes("US-ASCII"));
+        body.write(data, offset, length);
+        body.write("\r\n".getBytes("US-ASCII"));
+    }
+
+    private static JSONObject metadata(Block block) {
+        JSONObject address = new JSONObject();
+        address.put("sheetNumber", block.imageNumber);
+        address.put("imageNumber", block.imageNumber);
+        address.put("imagePart", block.imagePart);
+        address.put("moreParts", block.moreParts);
+        address.put("source", "feederFront");
+        address.put("streamName", "stream0");
+        address.put("sourceName", "source0");
+        address.put("pixelFormatName", "pixelFormat0");
+
+        JSONObject status = new JSONObject();
+        status.put("success", true);
+
+        JSONObject metadata = new JSONObject();
+        metadata.put("address", address);
+        metadata.put("status", status);
+        return metadata;
+    }
+
+    private synchronized JSONObject releaseImageBlocks(JSONObject params) {
+        if (!isCurrentSession(params)) {
+            return failure("invalidSessionId");
+        }
+
+        int fromBlock = params.optInt("imageBlockNum");
+        int toBlock = params.optInt("lastImageBlockNum", fromBlock);
+        if (toBlock >= fromBlock) {
+            blocks.subMap(fromBlock, true, toBlock, true).clear();
+        }
+
+        if (blocks.isEmpty() && doneCapturing) {
+            imageBlocksDrained = true;
+            if ("capturing".equals(state) || "draining".equals(state)) {
+                state = "ready";
+            }
+        }
+
+        if (blocks.isEmpty() && "closed".equals(state)) {
+            // The session was waiting for its blocks to be released before ending
+            state = "noSession";
+        }
+
+        changed();
+        return success();
+    }
+
+    private synchronized JSONObject closeSession(JSONObject params) {
+        if (!isCurrentSession(params)) {
+            return failure("invalidSessionId");
+        }
+
+        stopProducer();
+        doneCapturing = true;
+        imageBlocksDrained = blocks.isEmpty();
+        state = imageBlocksDrained ? "noSession" : "closed";
+        changed();
+        return success();
+    }
+
+    // Must be called with the lock held
+    private void startProducer() {
+        stopProducer();
+
+        final int generation = captureGeneration;
+        producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                producePages(generation);
+            }
+        }, "ScannerSimulator-producer");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    // Must be called with the lock held
+    private void stopProducer() {
+        captureGeneration++;
+        if (producer != null) {
+            producer.interrupt();
+            producer = null;
+        }
+        notifyAll();
+    }
+
+    private void producePages(int generation) {
+        int partsPerImage = Math.max(1, (config.imageSize + config.blockSize - 1) / config.blockSize);
+
+        for (int imageNumber = 1; imageNumber <= config.pageCount; imageNumber++) {
+            synchronized(this) {
+                // Wait for the client to free up buffer space
+                while (generation == captureGeneration && config.maxBufferedBlocks > 0
+                        && !blocks.isEmpty() && blocks.size() + partsPerImage > config.maxBufferedBlocks) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (generation != captureGeneration) {
+                    return;
+                }
+
+                addPage(imageNumber, partsPerImage);
+
+                if (imageNumber == config.pageCount) {
+                    doneCapturing = true;
+                }
+                changed();
+            }
+
+            if (config.pageInterval > 0 && imageNumber < config.pageCount) {
+                try {
+                    Thread.sleep(config.pageInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Must be called with the lock held
+    private void addPage(int imageNumber, int partsPerImage) {
+        pageProducedTimes.put(imageNumber, System.nanoTime());
+        for (int part = 1; part <= partsPerImage; part++) {
+            Block block = new Block();
+            block.blockNum = nextBlockNum++;
+            block.imageNumber = imageNumber;
+            block.imagePart = part;
+            block.moreParts = part < partsPerImage ? "morePartsPending" : "lastPartInFile";
+            block.offset = (part - 1) * config.blockSize;
+            block.length = Math.min(config.blockSize, config.imageSize - block.offset);
+            blocks.put(block.blockNum, block);
+        }
+    }
+}
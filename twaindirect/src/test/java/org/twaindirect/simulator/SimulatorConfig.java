@@ -0,0 +1,48 @@
+package org.twaindirect.simulator;
+
+/**
+ * Settings for ScannerSimulator.
+ */
+public class SimulatorConfig {
+    // Number of pages (images) produced by each startCapturing
+    public int pageCount = 10;
+
+    // Size of each image, in bytes
+    public int imageSize = 256 * 1024;
+
+    // Maximum size of an image block. Images larger than this are split into
+    // multiple parts, each in its own block.
+    public int blockSize = 256 * 1024;
+
+    // Milliseconds between pages. 0 produces every page as soon as capturing starts.
+    public int pageInterval = 0;
+
+    // The scanner stops producing pages while it holds this many unreleased blocks,
+    // like a real scanner running out of buffer space. 0 for no limit.
+    public int maxBufferedBlocks = 64;
+
+    // Delay added to every request, in milliseconds, plus a random amount up to jitter
+    public int latency = 0;
+    public int jitter = 0;
+
+    // Fraction of readImageBlock requests that fail with HTTP 503, from 0 to 1
+    public double errorRate = 0;
+
+    // Fraction of readImageBlock responses that are cut off part way through the
+    // image data, from 0 to 1
+    public double truncateRate = 0;
+
+    // When true, a readImageBlock response has its image part before its metadata
+    public boolean imagePartFirst = false;
+
+    // When true, each part of a readImageBlock response has a Content-Length header.
+    // When false, the client has to scan for the boundary.
+    public boolean partContentLength = true;
+
+    // waitForEvents returns with no events after this many milliseconds. Should be
+    // shorter than the client's read timeout.
+    public int waitForEventsTimeout = 20000;
+
+    // Seed for the jitter and error injection, so runs are repeatable
+    public long seed = 1;
+}
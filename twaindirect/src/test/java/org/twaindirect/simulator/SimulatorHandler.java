@@ -0,0 +1,41 @@
+package org.twaindirect.simulator;
+
+import org.twaindirect.session.LoopbackTransport;
+import org.twaindirect.session.TransportRequest;
+import org.twaindirect.session.TransportResponse;
+
+import java.net.URI;
+import java.util.Collections;
+
+/**
+ * Answers LoopbackTransport requests with a ScannerSimulator, without a server.
+ *
+ * Usage:
+ *      SimulatorHandler handler = new SimulatorHandler(new ScannerSimulator(config));
+ *      Session session = new Session(SimulatorHandler.url, null);
+ *      session.setTransport(new LoopbackTransport(handler));
+ *      ...
+ *      handler.getSimulator().shutdown();
+ */
+public class SimulatorHandler implements LoopbackTransport.Handler {
+    // Root URL to pass to Session. It's never resolved.
+    public static final URI url = URI.create("http://loopback.local/");
+
+    private final ScannerSimulator simulator;
+
+    public SimulatorHandler(ScannerSimulator simulator) {
+        this.simulator = simulator;
+    }
+
+    public ScannerSimulator getSimulator() {
+        return simulator;
+    }
+
+    @Override
+    public TransportResponse handle(TransportRequest request) {
+        SimulatorResponse response = simulator.handleRequest(request.method, request.url.getPath(),
+                request.headers.get("X-Privet-Token"), request.body);
+        return LoopbackTransport.response(response.statusCode,
+                Collections.singletonMap("Content-Type", response.contentType), response.body);
+    }
+}
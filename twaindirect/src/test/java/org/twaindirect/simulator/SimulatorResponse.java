@@ -0,0 +1,26 @@
+package org.twaindirect.simulator;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A response from ScannerSimulator, independent of how it's sent back to the client.
+ */
+public class SimulatorResponse {
+    public final int statusCode;
+    public final String contentType;
+    public final byte[] body;
+
+    public SimulatorResponse(int statusCode, String contentType, byte[] body) {
+        this.statusCode = statusCode;
+        this.contentType = contentType;
+        this.body = body;
+    }
+
+    static SimulatorResponse json(int statusCode, String json) {
+        try {
+            return new SimulatorResponse(statusCode, "application/json; charset=UTF-8", json.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.twaindirect.simulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a ScannerSimulator over HTTP on the loopback interface, on a free port.
+ *
+ * Usage:
+ *      SimulatorServer server = new SimulatorServer(new ScannerSimulator(config));
+ *      server.start();
+ *      Session session = new Session(server.getUrl(), server.getIpAddress());
+ *      ...
+ *      server.stop();
+ */
+public class SimulatorServer {
+    private final ScannerSimulator simulator;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public SimulatorServer(ScannerSimulator simulator) throws IOException {
+        this.simulator = simulator;
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleExchange(exchange);
+            }
+        });
+
+        // Every request gets a thread, so long-polls don't hold up block downloads
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimulatorServer-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+    }
+
+    public ScannerSimulator getSimulator() {
+        return simulator;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        simulator.shutdown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * The root URL of the scanner, to pass to Session.
+     */
+    public URI getUrl() {
+        return URI.create("http://" + getIpAddress() + ":" + server.getAddress().getPort() + "/");
+    }
+
+    public String getIpAddress() {
+        return server.getAddress().getAddress().getHostAddress();
+    }
+
+    private void handleExchange(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = readBody(exchange.getRequestBody());
+            String privetToken = exchange.getRequestHeaders().getFirst("X-Privet-Token");
+
+            SimulatorResponse response = simulator.handleRequest(exchange.getRequestMethod(),
+                    exchange.getRequestURI().getPath(), privetToken, body);
+
+            exchange.getResponseHeaders().set("Content-Type", response.contentType);
+            exchange.sendResponseHeaders(response.statusCode, response.body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response.body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, count);
+        }
+        return body.toByteArray();
+    }
+}